@@ -0,0 +1,161 @@
+package org.vaadin.gatanaso;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.PendingJavaScriptInvocation;
+
+/**
+ * Benchmarks requesting the first page of items matching a filter from large
+ * in-memory item lists, through the multiselect combo box and its data
+ * communicator, with the items set with
+ * {@link MultiselectComboBox#setItems(java.util.Collection)}, which filters
+ * with the default item filter, and with the indexed list data provider.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final int PAGE_SIZE = 50;
+
+    @Param({ "10000", "100000" })
+    public int itemCount;
+
+    @Param({ "7", "item-12", "not found" })
+    public String filter;
+
+    private List<String> items;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        items = IntStream.range(0, itemCount).mapToObj(i -> "Item-" + i)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Attached multiselect combo box, whose requested range is reset to the
+     * unfiltered items before each call, as the filter is only applied when
+     * it changes. Resetting the range is not part of the measured time.
+     */
+    public abstract static class ComboBoxState {
+
+        UI ui;
+        MultiselectComboBox<String> multiselectComboBox;
+        List<PendingJavaScriptInvocation> sent;
+
+        void attach(MultiselectComboBox<String> multiselectComboBox) {
+            this.multiselectComboBox = multiselectComboBox;
+            ui = new UI();
+            ui.add(multiselectComboBox);
+            sent = requestFirstPage("");
+        }
+
+        void resetRange() {
+            confirm(sent);
+            confirm(requestFirstPage(""));
+        }
+
+        List<PendingJavaScriptInvocation> requestFirstPage(String filter) {
+            multiselectComboBox.setRequestedRange(0, PAGE_SIZE, filter);
+            ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+            return ui.getInternals().dumpPendingJavaScriptInvocations();
+        }
+
+        /**
+         * Confirms the sent updates as the client would, so that the data
+         * communicator releases the items of earlier ranges.
+         */
+        private void confirm(List<PendingJavaScriptInvocation> invocations) {
+            for (PendingJavaScriptInvocation invocation : invocations) {
+                if (invocation.getInvocation().getExpression()
+                        .contains("$connector.update(")) {
+                    List<Object> parameters = invocation.getInvocation()
+                            .getParameters();
+                    multiselectComboBox.confirmUpdate(
+                            ((Number) parameters.get(4)).intValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * The items set with {@code setItems}, filtered with the default item
+     * filter of the multiselect combo box.
+     */
+    @State(Scope.Thread)
+    public static class ListState extends ComboBoxState {
+
+        @Setup(Level.Trial)
+        public void setUpTrial(FilterBenchmark benchmark) {
+            MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+            multiselectComboBox.setItems(benchmark.items);
+            attach(multiselectComboBox);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            resetRange();
+        }
+    }
+
+    /**
+     * Indexed list data provider that is built again before each call, as
+     * its cache of recent filters would answer every call after the first.
+     * Building the index is not part of the measured time.
+     */
+    @State(Scope.Thread)
+    public static class IndexedState extends ComboBoxState {
+
+        @Setup(Level.Trial)
+        public void setUpTrial(FilterBenchmark benchmark) {
+            MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+            multiselectComboBox.setDataProvider(createDataProvider(benchmark));
+            attach(multiselectComboBox);
+        }
+
+        @Setup(Level.Invocation)
+        public void setUp(FilterBenchmark benchmark) {
+            multiselectComboBox.setDataProvider(createDataProvider(benchmark));
+            resetRange();
+        }
+
+        private static IndexedListDataProvider<String> createDataProvider(
+                FilterBenchmark benchmark) {
+            return new IndexedListDataProvider<>(benchmark.items,
+                    String::valueOf, Locale.ROOT);
+        }
+    }
+
+    @Benchmark
+    public int listDataProvider(ListState state) {
+        state.sent = state.requestFirstPage(filter);
+        return state.sent.size();
+    }
+
+    @Benchmark
+    public int indexedListDataProvider(IndexedState state) {
+        state.sent = state.requestFirstPage(filter);
+        return state.sent.size();
+    }
+}
@@ -0,0 +1,56 @@
+package org.vaadin.gatanaso;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks generating and resolving the keys of the data communicator of
+ * MultiselectComboBox for pages of items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyMapperBenchmark {
+
+    @Param({ "50", "1000" })
+    public int itemCount;
+
+    @Benchmark
+    public void keyIntegerItems(Blackhole blackhole) {
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        for (int i = 0; i < itemCount; i++) {
+            blackhole.consume(keyMapper.key(i));
+        }
+    }
+
+    @Benchmark
+    public void keyStringItems(Blackhole blackhole) {
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setUniqueKeyDataGenerator(item -> item);
+        for (int i = 0; i < itemCount; i++) {
+            blackhole.consume(keyMapper.key("Item " + i));
+        }
+    }
+
+    @Benchmark
+    public void keyAndResolveItems(Blackhole blackhole) {
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        for (int i = 0; i < itemCount; i++) {
+            blackhole.consume(keyMapper.get(keyMapper.key(i)));
+        }
+    }
+}
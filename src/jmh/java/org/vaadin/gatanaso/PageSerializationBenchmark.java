@@ -0,0 +1,94 @@
+package org.vaadin.gatanaso;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.PendingJavaScriptInvocation;
+import com.vaadin.flow.data.provider.ArrayUpdater;
+import com.vaadin.flow.internal.JsonCodec;
+
+import elemental.json.JsonArray;
+import elemental.json.JsonValue;
+
+/**
+ * Benchmarks sending a page of generated items to the client, from the update
+ * queue of the multiselect combo box to the JSON of the resulting connector
+ * call. The items are generated once, so neither the data provider nor the
+ * data communicator is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PageSerializationBenchmark {
+
+    @Param({ "50", "500" })
+    public int rangeLength;
+
+    @Param({ "false", "true" })
+    public boolean compactItemEncoding;
+
+    private UI ui;
+    private MultiselectComboBox<String> multiselectComboBox;
+    private List<JsonValue> page;
+    private int updateId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> items = IntStream.range(0, rangeLength)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        multiselectComboBox.setCompactItemEncoding(compactItemEncoding);
+        ui = new UI();
+        ui.add(multiselectComboBox);
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        ui.getInternals().dumpPendingJavaScriptInvocations();
+
+        JsonArray generated = MultiselectComboBox.modelToPresentation(
+                multiselectComboBox, new LinkedHashSet<>(items));
+        page = new ArrayList<>(generated.length());
+        for (int i = 0; i < generated.length(); i++) {
+            page.add(generated.get(i));
+        }
+    }
+
+    @Benchmark
+    public int sendPage() {
+        ArrayUpdater.Update update = multiselectComboBox.arrayUpdater
+                .startUpdate(rangeLength);
+        update.set(0, page);
+        update.commit(++updateId);
+
+        int length = 0;
+        for (PendingJavaScriptInvocation invocation : ui.getInternals()
+                .dumpPendingJavaScriptInvocations()) {
+            for (Object parameter : invocation.getInvocation()
+                    .getParameters()) {
+                length += JsonCodec.encodeWithTypeInfo(parameter).toJson()
+                        .length();
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,94 @@
+package org.vaadin.gatanaso;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.flow.component.UI;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+/**
+ * Benchmarks the conversion of the selection between the server side value
+ * and the items sent to and received from the client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectionBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int selectionSize;
+
+    private MultiselectComboBox<String> multiselectComboBox;
+    private Set<String> selection;
+    private JsonArray presentation;
+    private JsonArray addedKey;
+    private JsonArray noKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<String> items = IntStream.range(0, selectionSize + 1)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        new UI().add(multiselectComboBox);
+
+        selection = new HashSet<>(items.subList(0, selectionSize));
+        multiselectComboBox.setValue(selection);
+        presentation = MultiselectComboBox
+                .modelToPresentation(multiselectComboBox, selection);
+
+        String addedItem = items.get(selectionSize);
+        addedKey = Json.createArray();
+        addedKey.set(0, MultiselectComboBox
+                .modelToPresentation(multiselectComboBox,
+                        Collections.singleton(addedItem))
+                .getObject(0)
+                .getString(MultiselectComboBox.ITEM_VALUE_PATH));
+        noKeys = Json.createArray();
+    }
+
+    @Benchmark
+    public JsonArray modelToPresentation() {
+        return MultiselectComboBox.modelToPresentation(multiselectComboBox,
+                selection);
+    }
+
+    @Benchmark
+    public Set<String> presentationToModelUnchanged() {
+        return MultiselectComboBox.presentationToModel(multiselectComboBox,
+                presentation);
+    }
+
+    // the connector sends the keys of the changed items only, and each call
+    // changes the value, so an item is added and removed again to measure a
+    // single item change every time
+    @Benchmark
+    public Set<String> updateSelectedItemsAddAndRemoveItem() {
+        multiselectComboBox.updateSelectedItems(addedKey, noKeys);
+        multiselectComboBox.updateSelectedItems(noKeys, addedKey);
+        return multiselectComboBox.getValue();
+    }
+}
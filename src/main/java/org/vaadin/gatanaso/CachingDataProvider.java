@@ -0,0 +1,413 @@
+package org.vaadin.gatanaso;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.vaadin.flow.data.provider.AbstractDataProvider;
+import com.vaadin.flow.data.provider.DataChangeEvent;
+import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.data.provider.DataProviderListener;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.data.provider.QuerySortOrder;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Data provider that caches the results of another data provider, so that
+ * identical queries made by different components are answered once.
+ * <p>
+ * The fetched items and the item counts are cached by the filter, offset,
+ * limit and sort orders of the query. The filter is the one passed to the
+ * wrapped data provider, ie. the filter returned by the filter converter of
+ * {@link MultiselectComboBox#setDataProvider(DataProvider, com.vaadin.flow.function.SerializableFunction)}.
+ * Queries whose filter does not implement {@link Object#equals(Object)}, such
+ * as the predicates created for every query when filtering a
+ * {@link com.vaadin.flow.data.provider.ListDataProvider} by the filter text,
+ * and queries with an in-memory sorting comparator are not cached. At most
+ * the given number of results is kept, the least recently used ones are
+ * evicted first, and results older than the given time to live are fetched
+ * again. Identical queries made while the result is being fetched wait for
+ * that fetch instead of querying the wrapped data provider again, and results
+ * fetched before the cache was cleared are not cached.
+ * <p>
+ * To share the results between UIs, create a single instance, eg. in a
+ * static field, and set it to all the components. The components listen to
+ * it only while attached and apply refreshes fired from other sessions with
+ * the lock of their own session. Calling {@link #refreshAll()} or
+ * {@link #refreshItem(Object)} on this data provider, or refreshing the
+ * wrapped data provider, clears the cache. This data provider only listens
+ * to the wrapped data provider while it has listeners itself, and clears
+ * the cache when the first listener is added. Listeners can be added and
+ * removed by any session, also while a refresh is being fired, and are kept
+ * until their registration is removed, so listeners added to a shared
+ * instance outside of the components should be removed when their component
+ * is detached. The cache is not serialized with the session.
+ *
+ * @param <T>
+ *            the item type
+ * @param <F>
+ *            the filter type
+ */
+public class CachingDataProvider<T, F> extends AbstractDataProvider<T, F> {
+
+    private static final ClassValue<Boolean> IMPLEMENTS_EQUALS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("equals", Object.class)
+                        .getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    private final DataProvider<T, F> dataProvider;
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+
+    private transient Map<Key, CachedResult> results;
+    // results being fetched, by the queries waiting for them
+    private transient Map<Key, CompletableFuture<Object>> loads;
+    // increased when the cache is cleared, so that results fetched before
+    // are not stored
+    private long generation;
+
+    private final DataProviderListeners<T> listeners = new DataProviderListeners<>();
+    private int listenerCount;
+    private Registration dataProviderRegistration;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Creates a new caching data provider.
+     *
+     * @param dataProvider
+     *            the data provider whose results are cached, not {@code null}
+     * @param maximumSize
+     *            the maximum number of cached query results, greater than
+     *            zero
+     * @param timeToLive
+     *            how long a query result is cached, not {@code null}
+     */
+    public CachingDataProvider(DataProvider<T, F> dataProvider,
+            int maximumSize, Duration timeToLive) {
+        this.dataProvider = Objects.requireNonNull(dataProvider,
+                "The data provider can not be null");
+        Objects.requireNonNull(timeToLive, "The time to live can not be null");
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException(
+                    "Maximum size should be greater than zero.");
+        }
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive.toNanos();
+    }
+
+    @Override
+    public synchronized Registration addDataProviderListener(
+            DataProviderListener<T> listener) {
+        Registration registration = listeners.add(listener);
+        if (listenerCount++ == 0) {
+            // refreshes were not listened to while there were no listeners
+            invalidate();
+            dataProviderRegistration = dataProvider
+                    .addDataProviderListener(event -> {
+                        invalidate();
+                        fireEvent(new DataChangeEvent<>(this));
+                    });
+        }
+        return new Registration() {
+            private boolean removed;
+
+            @Override
+            public void remove() {
+                synchronized (CachingDataProvider.this) {
+                    if (removed) {
+                        return;
+                    }
+                    removed = true;
+                    registration.remove();
+                    if (--listenerCount == 0) {
+                        dataProviderRegistration.remove();
+                        dataProviderRegistration = null;
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    protected void fireEvent(EventObject event) {
+        // fired without the lock, to the listeners of all sessions
+        if (!listeners.fire(event)) {
+            super.fireEvent(event);
+        }
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return dataProvider.isInMemory();
+    }
+
+    @Override
+    public int size(Query<T, F> query) {
+        if (!isCacheable(query)) {
+            return dataProvider.size(query);
+        }
+        return (Integer) load(new Key(false, query),
+                () -> dataProvider.size(query));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Stream<T> fetch(Query<T, F> query) {
+        if (!isCacheable(query)) {
+            return dataProvider.fetch(query);
+        }
+        List<T> items = (List<T>) load(new Key(true, query), () -> {
+            try (Stream<T> stream = dataProvider.fetch(query)) {
+                return Collections.unmodifiableList(
+                        stream.collect(Collectors.toList()));
+            }
+        });
+        return items.stream();
+    }
+
+    @Override
+    public Object getId(T item) {
+        return dataProvider.getId(item);
+    }
+
+    @Override
+    public void refreshItem(T item) {
+        // the cached pages containing the item are not known
+        invalidate();
+        super.refreshItem(item);
+    }
+
+    @Override
+    public void refreshAll() {
+        invalidate();
+        super.refreshAll();
+    }
+
+    /**
+     * Removes all cached query results.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        if (results != null) {
+            results.clear();
+        }
+        if (loads != null) {
+            // later queries do not wait for the results fetched before
+            loads.clear();
+        }
+    }
+
+    /**
+     * Gets the number of queries answered from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of queries passed to the wrapped data provider.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of query results removed from the cache because it was
+     * full or because they expired.
+     *
+     * @return the number of evicted query results
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Gets the number of currently cached query results.
+     *
+     * @return the number of cached query results
+     */
+    public synchronized int getCachedResultCount() {
+        return results == null ? 0 : results.size();
+    }
+
+    private static boolean isCacheable(Query<?, ?> query) {
+        return query.getInMemorySorting() == null
+                && query.getFilter().map(Object::getClass)
+                        .map(IMPLEMENTS_EQUALS::get).orElse(true);
+    }
+
+    /**
+     * Gets the cached result of the query, waits for the result if it is
+     * being fetched, or fetches it with the given loader.
+     */
+    private Object load(Key key, Supplier<Object> loader) {
+        CompletableFuture<Object> load;
+        boolean fetching = false;
+        long loadGeneration = 0;
+        synchronized (this) {
+            Object cached = lookUp(key);
+            if (cached != null) {
+                hitCount.incrementAndGet();
+                return cached;
+            }
+            load = getLoads().get(key);
+            if (load != null) {
+                // fetched once for all the identical queries
+                hitCount.incrementAndGet();
+            } else {
+                missCount.incrementAndGet();
+                load = new CompletableFuture<>();
+                loads.put(key, load);
+                fetching = true;
+                loadGeneration = generation;
+            }
+        }
+        if (!fetching) {
+            try {
+                return load.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        Object value;
+        try {
+            value = loader.get();
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                loads.remove(key, load);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            loads.remove(key, load);
+            // the result may be stale if the cache was cleared meanwhile
+            if (generation == loadGeneration) {
+                getResults().put(key,
+                        new CachedResult(value, System.nanoTime()));
+            }
+        }
+        load.complete(value);
+        return value;
+    }
+
+    private Object lookUp(Key key) {
+        CachedResult cached = getResults().get(key);
+        if (cached != null
+                && System.nanoTime() - cached.createdNanos > timeToLiveNanos) {
+            results.remove(key);
+            evictionCount.incrementAndGet();
+            cached = null;
+        }
+        return cached == null ? null : cached.value;
+    }
+
+    private Map<Key, CompletableFuture<Object>> getLoads() {
+        if (loads == null) {
+            loads = new HashMap<>();
+        }
+        return loads;
+    }
+
+    private Map<Key, CachedResult> getResults() {
+        if (results == null) {
+            results = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Key, CachedResult> eldest) {
+                    if (size() > maximumSize) {
+                        evictionCount.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        return results;
+    }
+
+    private static final class Key {
+        private final boolean fetch;
+        private final Object filter;
+        private final int offset;
+        private final int limit;
+        private final List<String> sortOrders;
+        private final int hashCode;
+
+        private Key(boolean fetch, Query<?, ?> query) {
+            this.fetch = fetch;
+            this.filter = query.getFilter().orElse(null);
+            this.offset = query.getOffset();
+            this.limit = query.getLimit();
+            this.sortOrders = new ArrayList<>();
+            if (query.getSortOrders() != null) {
+                for (QuerySortOrder sortOrder : query.getSortOrders()) {
+                    sortOrders.add(sortOrder.getSorted() + " "
+                            + sortOrder.getDirection());
+                }
+            }
+            this.hashCode = Objects.hash(fetch, filter, offset, limit,
+                    sortOrders);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return fetch == other.fetch && offset == other.offset
+                    && limit == other.limit
+                    && Objects.equals(filter, other.filter)
+                    && sortOrders.equals(other.sortOrders);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class CachedResult {
+        private final Object value;
+        private final long createdNanos;
+
+        private CachedResult(Object value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
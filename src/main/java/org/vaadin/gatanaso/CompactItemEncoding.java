@@ -0,0 +1,76 @@
+package org.vaadin.gatanaso;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonValue;
+
+/**
+ * Encodes a batch of items for the connector as positional arrays instead of
+ * objects, so that the field names are sent once per batch instead of once
+ * per item.
+ * <p>
+ * The first element of the encoded array is the array of field names, each
+ * following element is an item whose values are in the order of the field
+ * names. Explicit {@code null} values are kept and trailing missing fields are
+ * left out. Items missing a field before their last field are sent as
+ * objects, so that a missing field is not confused with a {@code null} value.
+ * The connector recognizes the encoding from the first element being an
+ * array, and expands the items back to objects when their page is used.
+ */
+final class CompactItemEncoding {
+
+    private CompactItemEncoding() {
+    }
+
+    /**
+     * Encodes the given items.
+     *
+     * @param items
+     *            the items to encode, as JSON objects
+     * @return the encoded items
+     */
+    static JsonArray encode(List<JsonValue> items) {
+        List<String> fields = new ArrayList<>();
+        Map<String, Integer> fieldIndexes = new HashMap<>();
+        for (JsonValue item : items) {
+            for (String field : ((JsonObject) item).keys()) {
+                if (!fieldIndexes.containsKey(field)) {
+                    fieldIndexes.put(field, fields.size());
+                    fields.add(field);
+                }
+            }
+        }
+
+        JsonArray encoded = Json.createArray();
+        JsonArray header = Json.createArray();
+        for (String field : fields) {
+            header.set(header.length(), field);
+        }
+        encoded.set(0, header);
+
+        for (JsonValue item : items) {
+            JsonObject object = (JsonObject) item;
+            int length = 0;
+            for (String field : object.keys()) {
+                length = Math.max(length, fieldIndexes.get(field) + 1);
+            }
+            if (object.keys().length < length) {
+                // a missing field would be expanded as null
+                encoded.set(encoded.length(), object);
+                continue;
+            }
+            JsonArray row = Json.createArray();
+            for (int i = 0; i < length; i++) {
+                row.set(i, object.get(fields.get(i)));
+            }
+            encoded.set(encoded.length(), row);
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,63 @@
+package org.vaadin.gatanaso;
+
+import java.io.Serializable;
+import java.util.EventObject;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.vaadin.flow.data.provider.DataChangeEvent;
+import com.vaadin.flow.data.provider.DataProviderListener;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * Listeners of a data provider that is shared between sessions.
+ * <p>
+ * The listeners of {@link com.vaadin.flow.data.provider.AbstractDataProvider}
+ * are kept in a plain map, so adding or removing a listener in one session
+ * while another session refreshes the data provider may fail the refresh.
+ * These listeners are kept in a copy-on-write list instead, so that events
+ * are fired to a snapshot of the listeners, and listeners can be added and
+ * removed by any thread, also while an event is being fired.
+ *
+ * @param <T>
+ *            the item type of the data provider
+ */
+final class DataProviderListeners<T> implements Serializable {
+
+    private final List<DataProviderListener<T>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Adds a listener.
+     *
+     * @param listener
+     *            the listener to add, not {@code null}
+     * @return the registration for removing the listener
+     */
+    Registration add(DataProviderListener<T> listener) {
+        Objects.requireNonNull(listener, "Listener can not be null");
+        // wrapped, so that removing removes this registration of the listener
+        DataProviderListener<T> registered = listener::onDataChange;
+        listeners.add(registered);
+        return () -> listeners.remove(registered);
+    }
+
+    /**
+     * Fires the event to the listeners, if it is a data change event.
+     *
+     * @param event
+     *            the event to fire
+     * @return {@code true} if the event was fired, {@code false} if it is
+     *         not a data change event
+     */
+    @SuppressWarnings("unchecked")
+    boolean fire(EventObject event) {
+        if (!(event instanceof DataChangeEvent)) {
+            return false;
+        }
+        for (DataProviderListener<T> listener : listeners) {
+            listener.onDataChange((DataChangeEvent<T>) event);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,362 @@
+package org.vaadin.gatanaso;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import com.vaadin.flow.component.ItemLabelGenerator;
+import com.vaadin.flow.data.provider.AbstractBackEndDataProvider;
+import com.vaadin.flow.data.provider.DataProviderListener;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.shared.Registration;
+
+/**
+ * In-memory data provider for large, mostly static item lists, which answers
+ * filter queries from an index of the unigrams, bigrams and trigrams of the
+ * item labels.
+ * <p>
+ * Like the default filtering of {@link MultiselectComboBox}, an item matches
+ * the filter text if its label contains the text, ignoring case. For filters
+ * of three or more characters only the items sharing the rarest trigram of the
+ * filter are checked, instead of every item. The items of a unigram or bigram
+ * are exactly the matches of a shorter filter, and the empty filter matches
+ * all items, so those are answered without checking any labels. The matches
+ * of the most recent filters are cached up to a total number of matches, so
+ * counting the matches and fetching the pages of the same filter is done only
+ * once.
+ * <p>
+ * Items are returned in the order they were added, sort orders of the query
+ * are ignored. The labels should be generated the same way as by the item
+ * label generator of the component. Items can be added and removed
+ * incrementally, call {@link #refreshAll()} afterwards to update the
+ * components using this data provider.
+ * <p>
+ * The data provider is thread safe and can be shared between UIs. Listeners
+ * can be added and removed by any session, also while a refresh is being
+ * fired, and are kept until their registration is removed, so listeners
+ * added to a shared instance outside of the components should be removed
+ * when their component is detached.
+ *
+ * @param <T>
+ *            the item type
+ */
+public class IndexedListDataProvider<T>
+        extends AbstractBackEndDataProvider<T, String> {
+
+    private static final int GRAM_LENGTH = 3;
+    private static final int CACHED_FILTERS = 16;
+    // the cached matches of all filters hold at most this many slots
+    private static final int MAX_CACHED_SLOTS = 1 << 20;
+
+    private final ItemLabelGenerator<T> itemLabelGenerator;
+    private final Locale locale;
+
+    // items and their normalized labels by slot, null for removed items
+    private final List<T> items = new ArrayList<>();
+    private final List<String> labels = new ArrayList<>();
+    private final Map<T, Integer> slots = new HashMap<>();
+    private final LongKeyMap<Postings> index = new LongKeyMap<>();
+    private int removedCount;
+
+    // the matches of recent filters, least recently used first
+    private final Map<String, Matches> cachedMatches = new LinkedHashMap<>(
+            CACHED_FILTERS, 0.75f, true);
+    private int cachedSlotCount;
+
+    private final DataProviderListeners<T> listeners = new DataProviderListeners<>();
+
+    /**
+     * Creates a new data provider, using {@link String#valueOf(Object)} as
+     * item labels and the default locale to ignore case.
+     *
+     * @param items
+     *            the initial items, not {@code null}
+     */
+    public IndexedListDataProvider(Collection<T> items) {
+        this(items, String::valueOf, Locale.getDefault());
+    }
+
+    /**
+     * Creates a new data provider.
+     *
+     * @param items
+     *            the initial items, not {@code null}
+     * @param itemLabelGenerator
+     *            the generator of the labels that are matched against the
+     *            filter, not {@code null}
+     * @param locale
+     *            the locale used to ignore case, not {@code null}
+     */
+    public IndexedListDataProvider(Collection<T> items,
+            ItemLabelGenerator<T> itemLabelGenerator, Locale locale) {
+        Objects.requireNonNull(items, "Items can not be null");
+        this.itemLabelGenerator = Objects.requireNonNull(itemLabelGenerator,
+                "The item label generator can not be null");
+        this.locale = Objects.requireNonNull(locale,
+                "The locale can not be null");
+        addItems(items);
+    }
+
+    /**
+     * Adds the given item to the end of the items, unless it is already
+     * included.
+     *
+     * @param item
+     *            the item to add
+     */
+    public synchronized void addItem(T item) {
+        if (slots.containsKey(item)) {
+            return;
+        }
+        int slot = items.size();
+        String label = normalize(itemLabelGenerator.apply(item));
+        items.add(item);
+        labels.add(label);
+        slots.put(item, slot);
+        for (int length = 1; length <= GRAM_LENGTH; length++) {
+            for (int i = 0; i + length <= label.length(); i++) {
+                long gram = gram(label, i, length);
+                Postings postings = index.get(gram);
+                if (postings == null) {
+                    postings = new Postings();
+                    index.put(gram, postings);
+                }
+                postings.add(slot);
+            }
+        }
+        clearCachedMatches();
+    }
+
+    /**
+     * Adds the given items to the end of the items, skipping the ones that
+     * are already included.
+     *
+     * @param items
+     *            the items to add, not {@code null}
+     */
+    public synchronized void addItems(Collection<T> items) {
+        items.forEach(this::addItem);
+    }
+
+    /**
+     * Removes the given item.
+     *
+     * @param item
+     *            the item to remove
+     */
+    public synchronized void removeItem(T item) {
+        Integer slot = slots.remove(item);
+        if (slot == null) {
+            return;
+        }
+        items.set(slot, null);
+        labels.set(slot, null);
+        removedCount++;
+        clearCachedMatches();
+
+        // removed slots are skipped by lookups, rebuild once they dominate
+        if (removedCount > slots.size()) {
+            List<T> remaining = getItems();
+            items.clear();
+            labels.clear();
+            slots.clear();
+            index.clear();
+            removedCount = 0;
+            addItems(remaining);
+        }
+    }
+
+    /**
+     * Gets a copy of the current items, in the order they were added.
+     *
+     * @return the current items
+     */
+    public synchronized List<T> getItems() {
+        List<T> current = new ArrayList<>(slots.size());
+        for (int slot = 0; slot < items.size(); slot++) {
+            if (labels.get(slot) != null) {
+                current.add(items.get(slot));
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public Registration addDataProviderListener(
+            DataProviderListener<T> listener) {
+        return listeners.add(listener);
+    }
+
+    @Override
+    protected void fireEvent(EventObject event) {
+        // fired without the lock, to the listeners of all sessions
+        if (!listeners.fire(event)) {
+            super.fireEvent(event);
+        }
+    }
+
+    @Override
+    protected synchronized Stream<T> fetchFromBackEnd(Query<T, String> query) {
+        String filter = normalize(query.getFilter().orElse(""));
+        if (filter.isEmpty()) {
+            return fetchItems(query.getOffset(), query.getLimit());
+        }
+        Matches matches = matches(filter);
+        int from = Math.min(query.getOffset(), matches.size);
+        int to = (int) Math.min((long) from + query.getLimit(),
+                matches.size);
+
+        List<T> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(items.get(matches.slots[i]));
+        }
+        return page.stream();
+    }
+
+    @Override
+    protected synchronized int sizeInBackEnd(Query<T, String> query) {
+        String filter = normalize(query.getFilter().orElse(""));
+        return filter.isEmpty() ? slots.size() : matches(filter).size;
+    }
+
+    /**
+     * Fetches a page of all items, skipping the slots of removed items.
+     */
+    private Stream<T> fetchItems(int offset, int limit) {
+        List<T> page = new ArrayList<>(
+                Math.max(0, Math.min(limit, slots.size() - offset)));
+        if (removedCount == 0) {
+            int to = (int) Math.min((long) offset + limit, items.size());
+            for (int slot = offset; slot < to; slot++) {
+                page.add(items.get(slot));
+            }
+            return page.stream();
+        }
+        int position = 0;
+        for (int slot = 0; slot < items.size() && page.size() < limit; slot++) {
+            if (labels.get(slot) != null && position++ >= offset) {
+                page.add(items.get(slot));
+            }
+        }
+        return page.stream();
+    }
+
+    private Matches matches(String filter) {
+        if (filter.length() < GRAM_LENGTH && removedCount == 0) {
+            // the items of the unigram or bigram are the matches
+            Postings postings = index.get(gram(filter, 0, filter.length()));
+            return postings == null ? Matches.NONE
+                    : new Matches(postings.slots, postings.size);
+        }
+        Matches matches = cachedMatches.get(filter);
+        if (matches == null) {
+            matches = findMatches(filter);
+            cacheMatches(filter, matches);
+        }
+        return matches;
+    }
+
+    private Matches findMatches(String filter) {
+        int gramLength = Math.min(filter.length(), GRAM_LENGTH);
+
+        // every match contains all grams of the filter, so it is enough to
+        // check the items of the gram with the fewest items
+        Postings candidates = null;
+        for (int i = 0; i + gramLength <= filter.length(); i++) {
+            Postings postings = index.get(gram(filter, i, gramLength));
+            if (postings == null) {
+                return Matches.NONE;
+            }
+            if (candidates == null || postings.size < candidates.size) {
+                candidates = postings;
+            }
+        }
+        int[] matches = Arrays.stream(candidates.slots, 0, candidates.size)
+                .filter(slot -> {
+                    String label = labels.get(slot);
+                    return label != null && label.contains(filter);
+                }).toArray();
+        return new Matches(matches, matches.length);
+    }
+
+    private void cacheMatches(String filter, Matches matches) {
+        if (matches.size > MAX_CACHED_SLOTS) {
+            return;
+        }
+        cachedMatches.put(filter, matches);
+        cachedSlotCount += matches.size;
+        Iterator<Matches> iterator = cachedMatches.values().iterator();
+        while (cachedSlotCount > MAX_CACHED_SLOTS
+                || cachedMatches.size() > CACHED_FILTERS) {
+            cachedSlotCount -= iterator.next().size;
+            iterator.remove();
+        }
+    }
+
+    private void clearCachedMatches() {
+        cachedMatches.clear();
+        cachedSlotCount = 0;
+    }
+
+    private String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(locale);
+    }
+
+    /**
+     * Encodes the characters of a gram of one to three characters. Shorter
+     * grams are tagged with their length above the characters, so that they
+     * do not collide with trigrams.
+     */
+    private static long gram(String text, int start, int length) {
+        long gram = (long) (GRAM_LENGTH - length) << 48;
+        for (int i = 0; i < length; i++) {
+            gram |= (long) text.charAt(start + i) << 16 * (length - 1 - i);
+        }
+        return gram;
+    }
+
+    /**
+     * Matching slots of a filter, the first {@code size} slots of the array.
+     * The array may be shared with the postings of a gram.
+     */
+    private static final class Matches implements Serializable {
+        private static final Matches NONE = new Matches(new int[0], 0);
+
+        private final int[] slots;
+        private final int size;
+
+        private Matches(int[] slots, int size) {
+            this.slots = slots;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Ascending slots of the items whose label contains a gram.
+     */
+    private static final class Postings implements Serializable {
+        private int[] slots = new int[4];
+        private int size;
+
+        private void add(int slot) {
+            // a label can contain the same trigram more than once
+            if (size > 0 && slots[size - 1] == slot) {
+                return;
+            }
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.vaadin.gatanaso;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A hash map with primitive {@code long} keys.
+ * <p>
+ * Uses open addressing with linear probing, so no key objects or entry
+ * objects are allocated per mapping. Values can not be {@code null}.
+ *
+ * @param <V>
+ *            the value type
+ */
+class LongKeyMap<V> implements Serializable {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Creates an empty map.
+     */
+    LongKeyMap() {
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    /**
+     * Gets the value mapped to the given key.
+     *
+     * @param key
+     *            the key to look up
+     * @return the mapped value, or {@code null} if there is none
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    /**
+     * Checks whether there is a value mapped to the given key.
+     *
+     * @param key
+     *            the key to check
+     * @return {@code true} if the key is mapped, {@code false} otherwise
+     */
+    boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value, not {@code null}
+     * @return the previously mapped value, or {@code null} if there was none
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        Objects.requireNonNull(value, "Value can not be null");
+        if ((size + 1) * 2 > values.length) {
+            allocate(values.length * 2);
+        }
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the given key.
+     *
+     * @param key
+     *            the key to remove
+     * @return the removed value, or {@code null} if the key was not mapped
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V removed = (V) values[index];
+
+        // shift back the following entries of the probe sequence, so that
+        // lookups don't need tombstones
+        int free = index;
+        int next = (index + 1) & mask;
+        while (values[next] != null) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[free] = null;
+        size--;
+        return removed;
+    }
+
+    /**
+     * Gets the mapped keys, in no particular order.
+     *
+     * @return a new array of the keys
+     */
+    long[] toKeyArray() {
+        long[] mappedKeys = new long[size];
+        int index = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                mappedKeys[index++] = keys[i];
+            }
+        }
+        return mappedKeys;
+    }
+
+    /**
+     * Gets the number of mappings.
+     *
+     * @return the number of mappings
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all mappings and shrinks the map back to its initial capacity.
+     */
+    void clear() {
+        size = 0;
+        allocate(MINIMUM_CAPACITY);
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+
+        if (oldValues != null && size > 0) {
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    int index = slot(oldKeys[i]);
+                    while (values[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = oldKeys[i];
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package org.vaadin.gatanaso;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.data.provider.InMemoryDataProvider;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.function.SerializableFunction;
+import com.vaadin.flow.function.SerializablePredicate;
+
+/**
+ * Selection of all the items of a data provider that match a filter, except
+ * for the excluded items and including the items added explicitly, that does
+ * not load the matching items into memory.
+ * <p>
+ * This is the value of a {@link MultiselectComboBox} after
+ * {@link MultiselectComboBox#selectAllMatching(String)}. The items are fetched
+ * from the data provider page by page while iterating, and {@link #size()}
+ * counts them with the data provider, so large selections can be handled
+ * without materializing them. Items are identified by
+ * {@link DataProvider#getId(Object)}. The filter is converted from the filter
+ * text for every query, so the selection follows changes of the item labels.
+ * <p>
+ * Checking whether items match the filter, ie. {@link #contains(Object)},
+ * {@link #allMatch(Collection)}, including and excluding items, is a single
+ * query filtered by the ids of the items for in-memory data providers. Other
+ * data providers are not scanned for the items, the ids are checked with the
+ * {@link MatchingIdsQuery} given to the selection instead. Without one, items
+ * are assumed to match the filter, so the caller should only exclude items
+ * of the selection, as otherwise {@link #size()} is too small.
+ * <p>
+ * Selections are immutable. As required by {@link Set}, they are equal to
+ * any set of the same items, which fetches all of them. Excluding items that
+ * are not selected has no effect. Included items that do not match the
+ * filter are kept in the selection, so only the explicit changes are held in
+ * memory.
+ * <p>
+ * The filter is applied by the thread using the selection. The default
+ * filter of a {@link MultiselectComboBox} with in-memory items reads no
+ * state of the component that is changed while filtering, so the selection
+ * can be iterated outside of the session lock if the data provider allows
+ * it. A custom filter converter or data provider may require holding the
+ * lock.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public class MatchingItemsSelection<T> extends AbstractSet<T>
+        implements Serializable {
+
+    /**
+     * Query of the items matching a filter text by their ids, for data
+     * providers that are not in memory, eg. a database query restricted to
+     * the given ids.
+     *
+     * @see MultiselectComboBox#setMatchingIdsQuery(MatchingIdsQuery)
+     */
+    @FunctionalInterface
+    public interface MatchingIdsQuery extends Serializable {
+
+        /**
+         * Finds which of the given ids belong to items matching the filter
+         * text.
+         *
+         * @param filterText
+         *            the filter text, or {@code null} to match all items
+         * @param ids
+         *            the ids of the items to check, not empty
+         * @return the ids of the items that match the filter text
+         */
+        Set<Object> findMatchingIds(String filterText, Set<Object> ids);
+    }
+
+    private static final int PAGE_SIZE = 100;
+
+    private final DataProvider<T, Object> dataProvider;
+    private final String filterText;
+    // the filter is converted from the filter text for every query, so that
+    // no filter of outdated labels is kept or serialized
+    private final SerializableFunction<String, ?> filterConverter;
+    private final long filterGeneration;
+    private final MatchingIdsQuery matchingIdsQuery;
+    // whether the data provider counts the items, otherwise they are counted
+    // by fetching them
+    private final boolean countable;
+    private final Set<Object> excludedIds;
+    // items that do not match the filter, by id
+    private final Map<Object, T> includedItems;
+
+    @SuppressWarnings("unchecked")
+    MatchingItemsSelection(DataProvider<T, ?> dataProvider, String filterText,
+            SerializableFunction<String, ?> filterConverter,
+            long filterGeneration, MatchingIdsQuery matchingIdsQuery,
+            boolean countable) {
+        this((DataProvider<T, Object>) dataProvider, filterText,
+                filterConverter, filterGeneration, matchingIdsQuery,
+                countable, Collections.emptySet(), Collections.emptyMap());
+    }
+
+    private MatchingItemsSelection(DataProvider<T, Object> dataProvider,
+            String filterText, SerializableFunction<String, ?> filterConverter,
+            long filterGeneration, MatchingIdsQuery matchingIdsQuery,
+            boolean countable, Set<Object> excludedIds,
+            Map<Object, T> includedItems) {
+        this.dataProvider = Objects.requireNonNull(dataProvider,
+                "The data provider can not be null");
+        this.filterText = filterText;
+        this.filterConverter = Objects.requireNonNull(filterConverter,
+                "The filter converter can not be null");
+        this.filterGeneration = filterGeneration;
+        this.matchingIdsQuery = matchingIdsQuery;
+        this.countable = countable;
+        this.excludedIds = excludedIds;
+        this.includedItems = includedItems;
+    }
+
+    private MatchingItemsSelection<T> with(Set<Object> excludedIds,
+            Map<Object, T> includedItems) {
+        return new MatchingItemsSelection<>(dataProvider, filterText,
+                filterConverter, filterGeneration, matchingIdsQuery,
+                countable, excludedIds, includedItems);
+    }
+
+    /**
+     * Gets the filter text the selected items match.
+     *
+     * @return the filter text, or {@code null} if all items of the data
+     *         provider are selected
+     */
+    public String getFilterText() {
+        return filterText;
+    }
+
+    /**
+     * Gets the ids of the items excluded from the selection.
+     *
+     * @return an unmodifiable set of the excluded ids
+     */
+    public Set<Object> getExcludedIds() {
+        return Collections.unmodifiableSet(excludedIds);
+    }
+
+    /**
+     * Gets the items included in the selection that do not match the filter.
+     *
+     * @return an unmodifiable collection of the included items
+     */
+    public Collection<T> getIncludedItems() {
+        return Collections.unmodifiableCollection(includedItems.values());
+    }
+
+    /**
+     * Creates a selection that also excludes the given items. Items that are
+     * not selected are ignored, unless their matching can not be checked,
+     * see {@link MatchingIdsQuery}.
+     *
+     * @param items
+     *            the items to exclude, not {@code null}
+     * @return the new selection, or this selection if nothing changes
+     */
+    public MatchingItemsSelection<T> withExcluded(Collection<T> items) {
+        Objects.requireNonNull(items, "The items can not be null");
+        Map<Object, T> included = includedItems;
+        Set<Object> newIds = new HashSet<>();
+        for (T item : items) {
+            Object id = dataProvider.getId(item);
+            if (included.containsKey(id)) {
+                if (included == includedItems) {
+                    included = new LinkedHashMap<>(includedItems);
+                }
+                included.remove(id);
+            } else if (!excludedIds.contains(id)) {
+                newIds.add(id);
+            }
+        }
+        // the excluded ids are kept to matching items, so that the size is
+        // the number of matching items minus the number of excluded ids
+        Set<Object> matchingIds = findMatchingIds(newIds);
+        Set<Object> ids = excludedIds;
+        if (matchingIds == null ? !newIds.isEmpty() : !matchingIds.isEmpty()) {
+            ids = new HashSet<>(excludedIds);
+            ids.addAll(matchingIds == null ? newIds : matchingIds);
+        }
+        return ids == excludedIds && included == includedItems ? this
+                : with(ids, included);
+    }
+
+    /**
+     * Creates a selection that also includes the given items. Excluded items
+     * are no longer excluded, and the items that do not match the filter are
+     * kept in the selection.
+     *
+     * @param items
+     *            the items to include, not {@code null}
+     * @return the new selection, or this selection if nothing changes
+     */
+    public MatchingItemsSelection<T> withIncluded(Collection<T> items) {
+        Objects.requireNonNull(items, "The items can not be null");
+        Set<Object> ids = excludedIds;
+        Map<Object, T> newItems = new HashMap<>();
+        for (T item : items) {
+            Object id = dataProvider.getId(item);
+            if (ids.contains(id)) {
+                // excluded items are known to match
+                if (ids == excludedIds) {
+                    ids = new HashSet<>(excludedIds);
+                }
+                ids.remove(id);
+            } else if (!includedItems.containsKey(id)) {
+                newItems.put(id, item);
+            }
+        }
+        Set<Object> matchingIds = findMatchingIds(newItems.keySet());
+        Map<Object, T> included = includedItems;
+        if (matchingIds != null && !matchingIds.containsAll(newItems.keySet())) {
+            included = new LinkedHashMap<>(includedItems);
+            for (Map.Entry<Object, T> item : newItems.entrySet()) {
+                if (!matchingIds.contains(item.getKey())) {
+                    included.put(item.getKey(), item.getValue());
+                }
+            }
+        }
+        return ids == excludedIds && included == includedItems ? this
+                : with(ids, included);
+    }
+
+    /**
+     * Checks whether all the given items match the filter of this selection,
+     * whether they are excluded or not. Items are assumed to match if that
+     * can not be checked, see {@link MatchingIdsQuery}.
+     *
+     * @param items
+     *            the items to check, not {@code null}
+     * @return {@code true} if all the items match the filter, {@code false}
+     *         otherwise
+     */
+    public boolean allMatch(Collection<T> items) {
+        Objects.requireNonNull(items, "The items can not be null");
+        Set<Object> ids = new HashSet<>();
+        for (T item : items) {
+            Object id = dataProvider.getId(item);
+            if (!excludedIds.contains(id)) {
+                ids.add(id);
+            }
+        }
+        return matchAll(ids);
+    }
+
+    /**
+     * Fetches a page of the selected items from the data provider.
+     * <p>
+     * The items before the offset are fetched as well to skip the excluded
+     * items, so iterate the selection to go through all of it.
+     *
+     * @param offset
+     *            the index of the first item to fetch
+     * @param limit
+     *            the largest number of items to fetch
+     * @return the stream of the selected items in the range
+     */
+    public Stream<T> fetch(int offset, int limit) {
+        if (offset < 0) {
+            throw new IllegalArgumentException(
+                    "The offset should be zero or positive");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException(
+                    "The limit should be zero or positive");
+        }
+        return stream().skip(offset).limit(limit);
+    }
+
+    /**
+     * Counts the selected items with the data provider, ie. the items
+     * matching the filter minus the excluded items plus the included items.
+     * If the data provider was set without a size callback, the items are
+     * counted by fetching all of them page by page instead.
+     *
+     * @return the number of selected items
+     */
+    @Override
+    public int size() {
+        if (!countable) {
+            long size = stream().count();
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+        int size = dataProvider.size(new Query<>(0, Integer.MAX_VALUE,
+                Collections.emptyList(), null, getFilter()));
+        return Math.max(0, size - excludedIds.size()) + includedItems.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        Object id = dataProvider.getId((T) o);
+        return includedItems.containsKey(id) || !excludedIds.contains(id)
+                && matchAll(Collections.singleton(id));
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PagedIterator();
+    }
+
+    @Override
+    public Spliterator<T> spliterator() {
+        // the default spliterator would count the items up front
+        return Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Checks whether the given selection selects the same items as this one
+     * by the same data provider, filter, excluded ids and included items,
+     * without fetching
+     * the items. Selections of the same filter text are different if the
+     * text was converted differently, eg. after the labels of the items
+     * changed.
+     */
+    boolean isSameSelection(MatchingItemsSelection<?> other) {
+        return dataProvider == other.dataProvider
+                && Objects.equals(filterText, other.filterText)
+                && filterConverter == other.filterConverter
+                && filterGeneration == other.filterGeneration
+                && excludedIds.equals(other.excludedIds)
+                && includedItems.keySet().equals(other.includedItems.keySet());
+    }
+
+    private Object getFilter() {
+        return filterConverter.apply(filterText);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchingItemsSelection[filterText=" + filterText
+                + ", excludedIds=" + excludedIds + ", includedIds="
+                + includedItems.keySet() + "]";
+    }
+
+    private boolean matchAll(Set<Object> ids) {
+        Set<Object> matchingIds = findMatchingIds(ids);
+        return matchingIds == null || matchingIds.containsAll(ids);
+    }
+
+    /**
+     * Finds which of the given ids belong to items matching the filter, with
+     * a single in-memory query or the matching ids query.
+     *
+     * @return the matching ids, or {@code null} if they can not be checked
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Object> findMatchingIds(Set<Object> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        if (dataProvider instanceof InMemoryDataProvider) {
+            Set<Object> matchingIds = new HashSet<>();
+            SerializablePredicate<T> matches = (SerializablePredicate<T>) getFilter();
+            SerializablePredicate<T> idFilter = item -> ids
+                    .contains(dataProvider.getId(item))
+                    && (matches == null || matches.test(item));
+            dataProvider
+                    .fetch(new Query<>(0, Integer.MAX_VALUE,
+                            Collections.emptyList(), null, idFilter))
+                    .forEach(item -> matchingIds.add(dataProvider.getId(item)));
+            return matchingIds;
+        }
+        if (matchingIdsQuery != null) {
+            return matchingIdsQuery.findMatchingIds(filterText,
+                    Collections.unmodifiableSet(ids));
+        }
+        return null;
+    }
+
+    private class PagedIterator implements Iterator<T> {
+        // converted once, so that all pages are fetched with the same filter
+        private final Object filter = getFilter();
+        private int offset;
+        private boolean lastPage;
+        private Iterator<T> page = Collections.emptyIterator();
+        private Iterator<T> included;
+        private T next;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (page.hasNext()) {
+                    T item = page.next();
+                    Object id = dataProvider.getId(item);
+                    // included items are returned last, even if they match
+                    // the filter by now
+                    if (!excludedIds.contains(id)
+                            && !includedItems.containsKey(id)) {
+                        next = item;
+                    }
+                } else if (lastPage) {
+                    if (included == null) {
+                        included = includedItems.values().iterator();
+                    }
+                    if (!included.hasNext()) {
+                        return false;
+                    }
+                    next = included.next();
+                } else {
+                    List<T> items = dataProvider
+                            .fetch(new Query<>(offset, PAGE_SIZE,
+                                    Collections.emptyList(), null, filter))
+                            .collect(Collectors.toList());
+                    offset += items.size();
+                    lastPage = items.size() < PAGE_SIZE;
+                    page = items.iterator();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = next;
+            next = null;
+            return item;
+        }
+    }
+}
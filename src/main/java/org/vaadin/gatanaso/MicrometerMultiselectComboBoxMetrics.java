@@ -0,0 +1,117 @@
+package org.vaadin.gatanaso;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics listener that records the metrics of {@link MultiselectComboBox}
+ * components in a Micrometer {@link MeterRegistry}, tagged with the component
+ * id.
+ * <p>
+ * The following meters are registered:
+ * <ul>
+ * <li>{@code multiselect.combo.box.fetch}: timer of the fetches from the data
+ * provider</li>
+ * <li>{@code multiselect.combo.box.count}: timer of the item counts of the
+ * data provider</li>
+ * <li>{@code multiselect.combo.box.update.items} and
+ * {@code multiselect.combo.box.update.bytes}: distributions of the items and
+ * UTF-8 encoded JSON bytes per update sent to the client</li>
+ * <li>{@code multiselect.combo.box.filter.requests}: counter of requests with
+ * a changed filter</li>
+ * <li>{@code multiselect.combo.box.selection.size}: distribution of the
+ * selection sizes</li>
+ * <li>{@code multiselect.combo.box.update.confirm}: timer from sending an
+ * update to its confirmation by the client</li>
+ * </ul>
+ * Micrometer is an optional dependency of this add-on, it has to be added to
+ * the application to use this class.
+ */
+public class MicrometerMultiselectComboBoxMetrics
+        implements MultiselectComboBoxMetrics {
+
+    private static final String PREFIX = "multiselect.combo.box.";
+    private static final String COMPONENT_TAG = "component";
+
+    private transient MeterRegistry registry;
+
+    /**
+     * Creates a new metrics listener recording to the global registry of
+     * Micrometer.
+     */
+    public MicrometerMultiselectComboBoxMetrics() {
+        this(Metrics.globalRegistry);
+    }
+
+    /**
+     * Creates a new metrics listener recording to the given registry.
+     * <p>
+     * The registry is not serialized with the session, after
+     * deserialization the global registry of Micrometer is used.
+     *
+     * @param registry
+     *            the registry to record to, not {@code null}
+     */
+    public MicrometerMultiselectComboBoxMetrics(MeterRegistry registry) {
+        this.registry = Objects.requireNonNull(registry,
+                "The registry can not be null");
+    }
+
+    @Override
+    public void itemsFetched(String componentId, long durationNanos,
+            int itemCount) {
+        timer("fetch", componentId).record(durationNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void itemsCounted(String componentId, long durationNanos,
+            int size) {
+        timer("count", componentId).record(durationNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void updateSent(String componentId, int itemCount, int bytes) {
+        summary("update.items", componentId).record(itemCount);
+        summary("update.bytes", componentId).record(bytes);
+    }
+
+    @Override
+    public void filterRequested(String componentId) {
+        Counter.builder(PREFIX + "filter.requests")
+                .tag(COMPONENT_TAG, componentId).register(getRegistry())
+                .increment();
+    }
+
+    @Override
+    public void selectionChanged(String componentId, int selectionSize) {
+        summary("selection.size", componentId).record(selectionSize);
+    }
+
+    @Override
+    public void updateConfirmed(String componentId, long latencyNanos) {
+        timer("update.confirm", componentId).record(latencyNanos,
+                TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String componentId) {
+        return Timer.builder(PREFIX + name).tag(COMPONENT_TAG, componentId)
+                .register(getRegistry());
+    }
+
+    private DistributionSummary summary(String name, String componentId) {
+        return DistributionSummary.builder(PREFIX + name)
+                .tag(COMPONENT_TAG, componentId).register(getRegistry());
+    }
+
+    private MeterRegistry getRegistry() {
+        return registry != null ? registry : Metrics.globalRegistry;
+    }
+}
@@ -1,15 +1,32 @@
 package org.vaadin.gatanaso;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import com.vaadin.flow.component.AbstractSinglePropertyField;
@@ -47,7 +64,11 @@ import com.vaadin.flow.dom.Element;
 import com.vaadin.flow.function.SerializableBiPredicate;
 import com.vaadin.flow.function.SerializableConsumer;
 import com.vaadin.flow.function.SerializableFunction;
-import com.vaadin.flow.internal.JsonUtils;
+import com.vaadin.flow.function.SerializablePredicate;
+import com.vaadin.flow.function.SerializableSupplier;
+import com.vaadin.flow.server.Command;
+import com.vaadin.flow.server.ErrorEvent;
+import com.vaadin.flow.server.VaadinSession;
 import com.vaadin.flow.shared.Registration;
 
 import elemental.json.Json;
@@ -73,14 +94,16 @@ import elemental.json.JsonValue;
  * MultiselectComboBox can do filtering either in the browser or in the server.
  * When MultiselectComboBox has only a relatively small set of items, the
  * filtering will happen in the browser, allowing smooth user-experience. When
- * the size of the data set is larger than the {@code pageSize}, the
- * web component doesn't necessarily have all the data available and it will make
- * requests to the server to handle the filtering. Also, if you have defined
+ * the size of the data set is larger than the client-side filter threshold,
+ * which is the {@code pageSize} by default, the web component doesn't
+ * necessarily have all the data available and it will make requests to the
+ * server to handle the filtering. Also, if you have defined
  * custom filtering logic, with eg. {@link #setItems(ItemFilter, Collection)},
  * filtering will happen in the server. To enable client-side filtering with
- * larger data sets, you can override the {@code pageSize} to be bigger than the
- * size of your data set. However, then the full data set will be sent to the
- * client immediately and you will lose the benefits of lazy loading.
+ * larger data sets, you can set a client-side filter threshold bigger than the
+ * size of your data set with {@link #setClientSideFilterThreshold(int)}.
+ * However, then the full data set will be sent to the client immediately and
+ * you will lose the benefits of lazy loading.
  *
  * @param <T>
  *            the type of the items to be inserted in the multiselect combo box
@@ -100,12 +123,17 @@ public class MultiselectComboBox<T>
     protected static final String ITEM_VALUE_PATH = "key";
     protected static final String ITEM_LABEL_PATH = "label";
 
+    private static final int DEFAULT_FILTER_DEBOUNCE = 500;
+    private static final int ITEM_CACHE_SIZE = 1000;
+    // the most items the data communicator sends for one requested range
+    private static final int MAXIMUM_CLIENT_SIDE_FILTER_THRESHOLD = 1000;
+
     private final CompositeDataGenerator<T> dataGenerator = new CompositeDataGenerator<>();
 
     /**
      * Lazy loading updater, used when calling setDataProvider()
      */
-    private final ArrayUpdater arrayUpdater = new ArrayUpdater() {
+    final ArrayUpdater arrayUpdater = new ArrayUpdater() {
         @Override
         public Update startUpdate(int sizeChange) {
             return new UpdateQueue(sizeChange);
@@ -119,11 +147,18 @@ public class MultiselectComboBox<T>
 
     private MultiselectComboBoxDataCommunicator<T> dataCommunicator;
     private Function<T, Object> uniqueKeyDataGenerator;
+    // Fetches the items of evicted keys from other than in-memory data
+    // providers, see setEvictedItemsCallback
+    private FetchByIdsCallback<T, Object> evictedItemsCallback;
     private ItemLabelGenerator<T> itemLabelGenerator = String::valueOf;
     private Registration dataGeneratorRegistration;
+    private Registration dataProviderListenerRegistration;
+    // set when detached, as the data provider is not listened to meanwhile
+    private boolean dataChangesMissed;
 
     private Renderer<T> renderer;
     private boolean renderScheduled;
+    private boolean compactItemEncoding;
     private Element template;
 
     private int customValuesListenersCount;
@@ -132,12 +167,79 @@ public class MultiselectComboBox<T>
         // Just ignore when setDataProvider has not been called
     };
 
+    // Converts the filter text for the data provider, used by
+    // selectAllMatching. Null when setDataProvider has not been called.
+    private SerializableFunction<String, ?> filterConverter;
+    private SerializableFunction<MatchingItemsSelection<T>, String> selectionSummaryGenerator = this::getDefaultSelectionSummary;
+    private MatchingItemsSelection.MatchingIdsQuery matchingIdsQuery;
+    // Incremented when the same filter text may match other items, ie. when
+    // the labels of the items or the locale change
+    private long filterGeneration;
+    private Locale filterGenerationLocale;
+
     // Filter set by the client when requesting data. It's sent back to client
     // together with the response so client may know for what filter data is
     // provided.
     private String lastFilter;
 
+    // Sent with every update, the client drops the pages it keeps for other
+    // filters when it changes, ie. when the items or their rendering change
+    private int cacheGeneration;
+
     private UserProvidedFilter userProvidedFilter = UserProvidedFilter.UNDECIDED;
+    private boolean serverSideFilteringForced;
+
+    // Fetches the items of a value set with setValueByIds, null once they
+    // have been fetched and bound to a data provider, see resolvePendingValue
+    private SerializableSupplier<Collection<T>> pendingValue;
+    private boolean pendingValueFetched;
+
+    // With lazy activation, the data provider is not queried until the
+    // connector reports that the drop-down was opened or filtered
+    private boolean lazyActivation;
+    private boolean dataActivated;
+
+    // Set when the items are fetched asynchronously, see setAsyncDataProvider
+    private AsyncFetchItemsCallback<T> asyncFetchItems;
+    private AsyncItems<T> asyncItems;
+    private int asyncRequestId;
+    private transient CompletableFuture<List<T>> pendingAsyncFetch;
+
+    // Set with setMetrics, null when nothing is measured
+    private MultiselectComboBoxMetrics metrics;
+    private String metricsId;
+    private transient Map<Integer, Long> sentUpdates;
+
+    // Selection as currently known by the client side. Value changes are sent
+    // to the client as added items and removed keys relative to it, null means
+    // that the client side selection is unknown and has to be sent in full.
+    // Only the keys are serialized, see getSyncedSelection.
+    private SyncedSelection<T> syncedSelection;
+    // The value the synced selection was last updated to, so that a change
+    // made to it with updateSelection is sent as the changed items only
+    private transient Set<T> syncedValue;
+    // The items of the synced value, which client and server side changes
+    // derive the new value from without copying the selected items
+    private transient SelectionSet<T> syncedItems;
+    // The change being applied by updateSelection, null otherwise
+    private transient SelectionChange<T> selectionChange;
+    // Whether the client shows the summary of a MatchingItemsSelection
+    private boolean selectionSummaryShown;
+
+    // Lower case item labels used by the default filter of list data
+    // providers, built for all the items at once by the first filter of the
+    // data provider and the locale they were normalized with. Looked up by
+    // identity, as the filter gets the instances of the list, and kept apart
+    // from the item cache, so that filtering all the items does not evict
+    // the labels and JSON of the items shown.
+    private transient Map<T, String> normalizedLabels;
+    private Locale normalizedLabelsLocale;
+
+    // Generated labels and JSON of recently used items, shared by the data
+    // generator, the filter and the selection updates. Room is reserved for
+    // the selected items on top of the cache size, so that a large selection
+    // does not evict the items shown. The cached values are not serialized.
+    private final ItemCache<T> itemCache = new ItemCache<>(ITEM_CACHE_SIZE);
 
     /**
      * Default constructor. Creates an empty multiselect combo box.
@@ -152,9 +254,10 @@ public class MultiselectComboBox<T>
      * <p>
      * The default page size is 50.
      * <p>
-     * The page size is also the largest number of items that can support
-     * client-side filtering. If you provide more items than the page size, the
-     * component has to fall back to server-side filtering.
+     * Unless a client-side filter threshold is set, the page size is also the
+     * largest number of items that can support client-side filtering. If you
+     * provide more items than that, the component has to fall back to
+     * server-side filtering.
      *
      * @param pageSize
      *            the amount of items to request at a time for lazy loading
@@ -173,7 +276,42 @@ public class MultiselectComboBox<T>
         setItemLabelPath(ITEM_LABEL_PATH);
         setPageSize(pageSize);
 
-        addAttachListener(e -> initConnector());
+        // selection changes are exchanged with the connector as deltas instead
+        // of synchronizing the whole selectedItems property
+        setSynchronizedEvent(null);
+
+        addAttachListener(e -> {
+            initConnector();
+            if (dataCommunicator != null
+                    && dataProviderListenerRegistration == null) {
+                addDataProviderListener();
+            }
+            if (dataChangesMissed) {
+                dataChangesMissed = false;
+                refreshAllData(serverSideFilteringForced);
+            }
+            resyncSelection(getValue());
+        });
+        addValueChangeListener(e -> {
+            // lazy selections are not counted just for the metrics
+            if (metrics != null
+                    && !(e.getValue() instanceof MatchingItemsSelection)) {
+                metrics.selectionChanged(metricsId,
+                        e.getValue() == null ? 0 : e.getValue().size());
+            }
+        });
+
+        addDetachListener(e -> {
+            syncedSelection = null;
+            updatePinnedKeys();
+            // the data provider may outlive this component
+            if (dataProviderListenerRegistration != null) {
+                removeDataProviderListener();
+                dataChangesMissed = true;
+            }
+            // nobody is waiting for the items anymore
+            cancelPendingAsyncFetch();
+        });
 
         runBeforeClientResponse(ui -> {
             // If user didn't provide any data, initialize with empty data set.
@@ -227,7 +365,7 @@ public class MultiselectComboBox<T>
         setItems(items);
     }
 
-    private static <T> Set<T> presentationToModel(
+    static <T> Set<T> presentationToModel(
             MultiselectComboBox<T> multiselectComboBox,
             JsonArray presentation) {
 
@@ -235,20 +373,57 @@ public class MultiselectComboBox<T>
             return multiselectComboBox.getEmptyValue();
         }
 
-        if (multiselectComboBox.getValue() != null) {
-            // keep existing value items in keyMapper
-            multiselectComboBox.getValue().forEach(item -> multiselectComboBox.getKeyMapper().key(item));
+        SyncedSelection<T> synced = multiselectComboBox.getSyncedSelection();
+        Set<T> value = multiselectComboBox.getValue();
+        if (synced == null || value == null
+                || value instanceof MatchingItemsSelection) {
+            // nothing known to diff against, look up every key
+            Set<T> set = new HashSet<>();
+            for (int i = 0; i < presentation.length(); i++) {
+                String key = presentation.getObject(i).getString(ITEM_VALUE_PATH);
+                T item = multiselectComboBox.getKeyMapper().get(key);
+                if (item != null) {
+                    set.add(item);
+                }
+            }
+            return Collections.unmodifiableSet(set);
         }
 
-        Set<T> set = new HashSet<>();
+        List<String> addedKeys = new ArrayList<>();
+        int knownKeys = 0;
         for (int i = 0; i < presentation.length(); i++) {
             String key = presentation.getObject(i).getString(ITEM_VALUE_PATH);
-            set.add(multiselectComboBox.getKeyMapper().get(key));
+            if (synced.containsKey(key)) {
+                knownKeys++;
+            } else {
+                addedKeys.add(key);
+            }
         }
-        return set;
+
+        if (addedKeys.isEmpty() && knownKeys == synced.size()) {
+            return value;
+        }
+
+        Set<T> removedItems = Collections.emptySet();
+        if (knownKeys < synced.size()) {
+            Set<String> keys = new HashSet<>();
+            for (int i = 0; i < presentation.length(); i++) {
+                keys.add(presentation.getObject(i).getString(ITEM_VALUE_PATH));
+            }
+            removedItems = new HashSet<>(synced.getItemsWithoutKeys(keys));
+        }
+        List<T> addedItems = new ArrayList<>();
+        for (String key : addedKeys) {
+            T item = multiselectComboBox.getKeyMapper().get(key);
+            if (item != null) {
+                addedItems.add(item);
+            }
+        }
+        return multiselectComboBox.getValueItems().with(addedItems,
+                removedItems);
     }
 
-    private static <T> JsonArray modelToPresentation(
+    static <T> JsonArray modelToPresentation(
             MultiselectComboBox<T> multiselectComboBox, Set<T> model) {
         JsonArray array = Json.createArray();
         if (model == null || model.isEmpty()) {
@@ -261,8 +436,16 @@ public class MultiselectComboBox<T>
         return array;
     }
 
+    @Override
+    public Set<T> getValue() {
+        resolvePendingValue();
+        return super.getValue();
+    }
+
     @Override
     public void setValue(Set<T> value) {
+        pendingValue = null;
+        pendingValueFetched = false;
         if (dataCommunicator == null) {
             if (value == null || value.equals(getEmptyValue())) {
                 return;
@@ -274,16 +457,342 @@ public class MultiselectComboBox<T>
             }
         }
         super.setValue(value);
-        refreshValue();
     }
 
-    private void refreshValue() {
+    /**
+     * Sets the value from the ids of the selected items, without loading the
+     * items yet.
+     * <p>
+     * The items are fetched with a single call of the given callback once
+     * they are needed, when {@link #getValue()} is called or before the
+     * selection is sent to the client. Value change listeners are notified
+     * when the items have been fetched. Only the selected items are fetched
+     * and sent to the client, the data provider is not queried.
+     * <p>
+     * Unlike {@link #setValue(Set)}, this can be called before the items
+     * of the combo box are set. The value is then kept when the items are
+     * set, instead of being cleared.
+     *
+     * @param ids
+     *            the ids of the selected items, not {@code null}
+     * @param fetchByIds
+     *            the callback fetching the items of the ids, not {@code null}
+     * @param <ID>
+     *            the type of the item ids
+     */
+    public <ID> void setValueByIds(Collection<ID> ids,
+            FetchByIdsCallback<T, ID> fetchByIds) {
+        Objects.requireNonNull(ids, "The ids can not be null");
+        Objects.requireNonNull(fetchByIds,
+                "The fetch by ids callback can not be null");
+        if (ids.isEmpty()) {
+            setValue(getEmptyValue());
+            return;
+        }
+        List<ID> pendingIds = new ArrayList<>(ids);
+        pendingValue = () -> fetchByIds.fetchByIds(pendingIds);
+        pendingValueFetched = false;
+        runBeforeClientResponse(ui -> resolvePendingValue());
+    }
+
+    private void resolvePendingValue() {
+        if (pendingValue == null
+                || (pendingValueFetched && dataCommunicator == null)) {
+            return;
+        }
+        if (pendingValueFetched) {
+            // the items were fetched before there was a data provider, only
+            // the client is missing them
+            pendingValue = null;
+            pendingValueFetched = false;
+            resyncSelection(getValue());
+            return;
+        }
+        // marked before fetching, getValue calls of the callback and of the
+        // value change listeners do not fetch again
+        SerializableSupplier<Collection<T>> fetch = pendingValue;
+        if (dataCommunicator == null) {
+            // nothing to send to the client before there are items, the
+            // pending value is kept until a data provider is set
+            pendingValueFetched = true;
+            setModelValue(new HashSet<>(fetch.get()), false);
+        } else {
+            pendingValue = null;
+            setValue(new HashSet<>(fetch.get()));
+        }
+    }
+
+    @Override
+    protected boolean valueEquals(Set<T> value1, Set<T> value2) {
+        boolean matching1 = value1 instanceof MatchingItemsSelection;
+        boolean matching2 = value2 instanceof MatchingItemsSelection;
+        if (matching1 != matching2) {
+            // not compared with equals, which would count the matching items
+            return false;
+        }
+        if (matching1) {
+            // compared without fetching the items
+            return ((MatchingItemsSelection<T>) value1)
+                    .isSameSelection((MatchingItemsSelection<T>) value2);
+        }
+        return super.valueEquals(value1, value2);
+    }
+
+    /**
+     * Selects all the items that match the given filter, without fetching
+     * them from the data provider.
+     * <p>
+     * The value of the component becomes a {@link MatchingItemsSelection},
+     * which is also what value change and selection listeners receive. It
+     * fetches the items page by page when iterated. Deselecting items excludes
+     * them from the selection, and selecting items that do not match the
+     * filter includes them, so only the changed items are kept in memory.
+     * Only a summary of the selection is sent to the
+     * client, see {@link #setSelectionSummaryGenerator(SerializableFunction)}.
+     *
+     * @param filterText
+     *            the filter text the selected items match, or {@code null} to
+     *            select all items
+     * @return the new selection
+     */
+    public MatchingItemsSelection<T> selectAllMatching(String filterText) {
+        if (filterConverter == null || asyncFetchItems != null) {
+            throw new IllegalStateException(
+                    "Selecting all matching items requires a data provider. "
+                            + "Use setItems or setDataProvider to populate "
+                            + "items into the MultiselectComboBox first.");
+        }
+        MatchingItemsSelection<T> selection = new MatchingItemsSelection<>(
+                getDataProvider(), filterText, filterConverter,
+                getFilterGeneration(), matchingIdsQuery,
+                dataCommunicator.isDefinedSize());
+        setValue(selection);
+        return selection;
+    }
+
+    private long getFilterGeneration() {
+        Locale locale = getLocale();
+        if (!Objects.equals(locale, filterGenerationLocale)) {
+            filterGenerationLocale = locale;
+            filterGeneration++;
+        }
+        return filterGeneration;
+    }
+
+    /**
+     * Sets the query that checks which items match the filter of a selection
+     * of all matching items, for data providers that are not in memory.
+     * <p>
+     * The data provider is not scanned for the items to check. Without a
+     * query, items selected while all matching items are selected are
+     * assumed to match, and deselected items are assumed to be selected.
+     * Items of in-memory data providers are checked without a query.
+     *
+     * @param matchingIdsQuery
+     *            the query of the matching ids, or {@code null} to assume
+     *            that items match
+     * @see #selectAllMatching(String)
+     */
+    public void setMatchingIdsQuery(
+            MatchingItemsSelection.MatchingIdsQuery matchingIdsQuery) {
+        this.matchingIdsQuery = matchingIdsQuery;
+    }
+
+    /**
+     * Sets the generator of the summary that is shown on the client instead
+     * of the selected items while all items matching a filter are selected.
+     * <p>
+     * The default summary is the number of selected items, or the filter
+     * text if the data provider was set without a size callback.
+     *
+     * @param selectionSummaryGenerator
+     *            the summary generator to use, not {@code null}
+     * @see #selectAllMatching(String)
+     */
+    public void setSelectionSummaryGenerator(
+            SerializableFunction<MatchingItemsSelection<T>, String> selectionSummaryGenerator) {
+        this.selectionSummaryGenerator = Objects.requireNonNull(
+                selectionSummaryGenerator,
+                "The selection summary generator can not be null");
+        if (getValue() instanceof MatchingItemsSelection) {
+            resyncSelection(getValue());
+        }
+    }
+
+    private String getDefaultSelectionSummary(
+            MatchingItemsSelection<T> selection) {
+        if (dataCommunicator != null && !dataCommunicator.isDefinedSize()) {
+            // the data provider can not be counted
+            return selection.getFilterText() == null ? "All items"
+                    : "All items matching \"" + selection.getFilterText()
+                            + "\"";
+        }
+        return selection.size() + " items";
+    }
+
+    /**
+     * Applies a selection change to a selection of matching items, which
+     * keeps the changed items only, without fetching the matching ones.
+     */
+    private MatchingItemsSelection<T> updateMatchingSelection(
+            MatchingItemsSelection<T> selection, Set<T> addedItems,
+            Set<T> removedItems) {
+        return selection.withIncluded(addedItems).withExcluded(removedItems);
+    }
+
+    @Override
+    protected void setPresentationValue(Set<T> newPresentationValue) {
+        if (dataCommunicator == null) {
+            // no items yet, so there is nothing to diff against
+            super.setPresentationValue(newPresentationValue);
+            return;
+        }
+        if (newPresentationValue instanceof MatchingItemsSelection
+                || selectionSummaryShown) {
+            resyncSelection(newPresentationValue);
+            return;
+        }
+        if (getSyncedSelection() == null) {
+            resyncSelection(newPresentationValue);
+            return;
+        }
+
+        Set<T> value = newPresentationValue == null ? Collections.emptySet()
+                : newPresentationValue;
+
+        JsonArray removedKeys;
+        JsonArray addedItems = Json.createArray();
+        Set<T> changedAddedItems;
+        SelectionChange<T> change = selectionChange;
+        boolean delta = change != null && change.value == newPresentationValue
+                && change.previousValue == syncedValue;
+        if (delta) {
+            // only the items changed since the synced value are compared
+            removedKeys = Json.createArray();
+            for (T item : change.removedItems) {
+                String key = syncedSelection.removeItem(item);
+                if (key != null) {
+                    removedKeys.set(removedKeys.length(), key);
+                }
+            }
+            changedAddedItems = change.addedItems;
+            itemCache.reserve(syncedSelection.size()
+                    + changedAddedItems.size());
+        } else {
+            removedKeys = syncedSelection.retainAll(value);
+            changedAddedItems = value;
+            itemCache.reserve(value.size());
+        }
+        List<String> addedKeys = new ArrayList<>();
+        for (T item : changedAddedItems) {
+            if (!syncedSelection.contains(item)) {
+                JsonObject jsonObject = generateJson(item);
+                String key = jsonObject.getString(ITEM_VALUE_PATH);
+                syncedSelection.put(item, key);
+                addedKeys.add(key);
+                addedItems.set(addedItems.length(), jsonObject);
+            }
+        }
+        syncedValue = newPresentationValue;
+        syncedItems = SelectionSet.of(value);
+        if (delta) {
+            List<String> unpinnedKeys = new ArrayList<>();
+            for (int i = 0; i < removedKeys.length(); i++) {
+                unpinnedKeys.add(removedKeys.getString(i));
+            }
+            dataCommunicator.updatePinnedKeys(addedKeys, unpinnedKeys);
+        } else {
+            updatePinnedKeys();
+        }
+
+        if (addedItems.length() > 0 || removedKeys.length() > 0) {
+            getElement().callJsFunction("$connector.updateSelectedItems",
+                    addedItems, removedKeys);
+        }
+    }
+
+    /**
+     * Gets the selection known by the client, looking up the items of its
+     * keys after deserialization. If an item can no longer be found, the
+     * selection is unknown and {@code null} is returned.
+     */
+    private SyncedSelection<T> getSyncedSelection() {
+        if (syncedSelection != null
+                && !syncedSelection
+                        .restoreItems(key -> getKeyMapper().get(key))) {
+            syncedSelection = null;
+            updatePinnedKeys();
+        }
+        return syncedSelection;
+    }
+
+    /**
+     * Gets the items of the current value, which changes are derived from.
+     * The items are only copied if the value was set with
+     * {@link #setValue(Set)} and has not been sent to the client since.
+     */
+    private SelectionSet<T> getValueItems() {
         Set<T> value = getValue();
-        if (value == null || value.isEmpty()) {
+        if (value == syncedValue && syncedItems != null) {
+            return syncedItems;
+        }
+        return SelectionSet.of(value);
+    }
+
+    /**
+     * Pins the keys of the selection known by the client, so that the key
+     * mapper keeps them regardless of the client caches. The key mapper gets
+     * a copy of the keys, as it may be used outside of the session lock.
+     */
+    private void updatePinnedKeys() {
+        if (dataCommunicator != null) {
+            dataCommunicator.setPinnedKeys(syncedSelection == null
+                    ? Collections.emptySet()
+                    : syncedSelection.keys());
+        }
+    }
+
+    /**
+     * Sends the given selection to the client in full, replacing whatever
+     * the client side currently has selected.
+     */
+    private void resyncSelection(Set<T> value) {
+        syncedSelection = null;
+        syncedValue = null;
+        syncedItems = null;
+        updatePinnedKeys();
+        if (!getElement().getNode().isAttached() || dataCommunicator == null) {
+            // the selection is sent once the component gets attached and
+            // there are items
+            return;
+        }
+        if (value instanceof MatchingItemsSelection) {
+            // the client shows the summary with no items selected
+            syncedSelection = new SyncedSelection<>();
+            selectionSummaryShown = true;
+            getElement().callJsFunction("$connector.setSelectionSummary",
+                    selectionSummaryGenerator
+                            .apply((MatchingItemsSelection<T>) value));
             return;
         }
-        JsonArray selectedItems = modelToPresentation(this, value);
-        getElement().setPropertyJson("selectedItems", selectedItems);
+
+        SyncedSelection<T> synced = new SyncedSelection<>();
+        JsonArray selectedItems = Json.createArray();
+        itemCache.reserve(value == null ? 0 : value.size());
+        if (value != null) {
+            for (T item : value) {
+                JsonObject jsonObject = generateJson(item);
+                synced.put(item, jsonObject.getString(ITEM_VALUE_PATH));
+                selectedItems.set(selectedItems.length(), jsonObject);
+            }
+        }
+        syncedSelection = synced;
+        syncedValue = value;
+        syncedItems = SelectionSet.of(value);
+        updatePinnedKeys();
+        selectionSummaryShown = false;
+        getElement().callJsFunction("$connector.setSelectedItems",
+                selectedItems);
     }
 
     /**
@@ -553,10 +1062,13 @@ public class MultiselectComboBox<T>
         Objects.requireNonNull(itemLabelGenerator,
                 "The item label generator can not be null");
         this.itemLabelGenerator = itemLabelGenerator;
+        normalizedLabels = null;
+        filterGeneration++;
+        itemCache.invalidateLabels();
+        cacheGeneration++;
         reset();
-        if (getValue() != null) {
-            refreshValue();
-        }
+        // labels of the selected items changed, send them again
+        resyncSelection(getValue());
     }
 
     /**
@@ -565,9 +1077,10 @@ public class MultiselectComboBox<T>
      * backend; when the overlay has room to render more new items than the page
      * size, multiple "pages" will be requested at once.
      * <p>
-     * The page size is also the largest number of items that can support
-     * client-side filtering. If you provide more items than the page size, the
-     * component has to fall back to server-side filtering.
+     * Unless a client-side filter threshold is set, the page size is also the
+     * largest number of items that can support client-side filtering. If you
+     * provide more items than that, the component has to fall back to
+     * server-side filtering.
      * <p>
      * Setting the page size after the MultiselectComboBox has been rendered
      * effectively resets the component, and the current page(s) and sent over
@@ -592,9 +1105,10 @@ public class MultiselectComboBox<T>
      * Gets the page size, which is the number of items fetched at a time from
      * the data provider.
      * <p>
-     * The page size is also the largest number of items that can support
-     * client-side filtering. If you provide more items than the page size, the
-     * component has to fall back to server-side filtering.
+     * Unless a client-side filter threshold is set, the page size is also the
+     * largest number of items that can support client-side filtering. If you
+     * provide more items than that, the component has to fall back to
+     * server-side filtering.
      * <p>
      * The default page size is 50.
      *
@@ -605,6 +1119,240 @@ public class MultiselectComboBox<T>
         return getElement().getProperty("pageSize", 50);
     }
 
+    /**
+     * Sets the number of pages that are requested ahead of the page being
+     * displayed, so that scrolling past the loaded items does not have to
+     * wait for the server.
+     * <p>
+     * The prefetched pages are kept in the browser until they are displayed,
+     * or until the filter changes. They are limited by
+     * {@link #setMaxPrefetchedItems(int)}. Prefetching is not used when
+     * filtering is done in the browser, as then all items are loaded anyway.
+     * <p>
+     * By default no pages are prefetched.
+     *
+     * @param prefetchPages
+     *            the number of pages to request ahead, not negative
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        if (prefetchPages < 0) {
+            throw new IllegalArgumentException(
+                    "Prefetch pages should not be negative.");
+        }
+        getElement().setProperty("_prefetchPages", prefetchPages);
+    }
+
+    /**
+     * Gets the number of pages that are requested ahead of the page being
+     * displayed.
+     *
+     * @return the number of pages requested ahead
+     * @see #setPrefetchPages(int)
+     */
+    public int getPrefetchPages() {
+        return getElement().getProperty("_prefetchPages", 0);
+    }
+
+    /**
+     * Sets the largest number of items that are kept in the browser before
+     * they are displayed. Pages are not prefetched past this limit, and when
+     * it is exceeded, the loaded pages farthest from the displayed page are
+     * dropped.
+     * <p>
+     * The default limit is 500 items.
+     *
+     * @param maxPrefetchedItems
+     *            the largest number of items kept, not negative
+     * @see #setPrefetchPages(int)
+     */
+    public void setMaxPrefetchedItems(int maxPrefetchedItems) {
+        if (maxPrefetchedItems < 0) {
+            throw new IllegalArgumentException(
+                    "Max prefetched items should not be negative.");
+        }
+        getElement().setProperty("_maxPrefetchedItems", maxPrefetchedItems);
+    }
+
+    /**
+     * Gets the largest number of items that are kept in the browser before
+     * they are displayed.
+     *
+     * @return the largest number of items kept
+     * @see #setMaxPrefetchedItems(int)
+     */
+    public int getMaxPrefetchedItems() {
+        return getElement().getProperty("_maxPrefetchedItems", 500);
+    }
+
+    /**
+     * Sets the listener for the performance metrics of this component, eg.
+     * the time taken by the data provider and the size of the updates sent to
+     * the client. The metrics are reported with the given component id, so
+     * that the components of an application can be told apart.
+     * <p>
+     * By default no metrics are measured.
+     *
+     * @param metrics
+     *            the metrics listener, or {@code null} to stop measuring
+     * @param componentId
+     *            the id the metrics are reported with, not {@code null} if
+     *            the listener is set
+     * @see MicrometerMultiselectComboBoxMetrics
+     */
+    public void setMetrics(MultiselectComboBoxMetrics metrics,
+            String componentId) {
+        if (metrics != null) {
+            Objects.requireNonNull(componentId,
+                    "The component id can not be null");
+        }
+        this.metrics = metrics;
+        this.metricsId = componentId;
+        sentUpdates = null;
+        if (dataCommunicator != null) {
+            // asynchronous fetches are measured when their items arrive
+            dataCommunicator.setMetrics(
+                    asyncFetchItems == null ? metrics : null, componentId);
+        }
+    }
+
+    /**
+     * Sets the largest number of items that are filtered in the browser.
+     * <p>
+     * When the data provider has at most this many items, all of them are
+     * loaded to the browser in as many pages as needed when the overlay is
+     * first opened, and filtering is done there without requests to the
+     * server. With more items, or with custom filtering logic, filtering is
+     * done in the server.
+     * <p>
+     * By default the threshold is the page size.
+     *
+     * @param clientSideFilterThreshold
+     *            the largest number of items filtered in the browser, between
+     *            0 and 1000
+     * @see #setPageSize(int)
+     */
+    public void setClientSideFilterThreshold(int clientSideFilterThreshold) {
+        if (clientSideFilterThreshold < 0
+                || clientSideFilterThreshold > MAXIMUM_CLIENT_SIDE_FILTER_THRESHOLD) {
+            throw new IllegalArgumentException(
+                    "Client-side filter threshold should be between 0 and "
+                            + MAXIMUM_CLIENT_SIDE_FILTER_THRESHOLD + ".");
+        }
+        getElement().setProperty("_clientSideFilterThreshold",
+                clientSideFilterThreshold);
+        if (dataCommunicator != null) {
+            refreshAllData(serverSideFilteringForced);
+        }
+    }
+
+    /**
+     * Gets the largest number of items that are filtered in the browser.
+     *
+     * @return the largest number of items filtered in the browser
+     * @see #setClientSideFilterThreshold(int)
+     */
+    public int getClientSideFilterThreshold() {
+        return getElement().getProperty("_clientSideFilterThreshold",
+                getPageSize());
+    }
+
+    /**
+     * Sets the time in milliseconds the filter has to stay unchanged before
+     * the items matching it are requested from the server. A shorter delay
+     * makes searching more responsive with fast data providers, a longer
+     * delay sends fewer requests to slow backends while the user types.
+     * <p>
+     * The delay does not apply to client-side filtering. The default delay
+     * is 500 milliseconds.
+     *
+     * @param filterDebounce
+     *            the delay in milliseconds, not negative
+     * @see #setAdaptiveFilterDebounce(boolean)
+     */
+    public void setFilterDebounce(int filterDebounce) {
+        if (filterDebounce < 0) {
+            throw new IllegalArgumentException(
+                    "Filter debounce should not be negative.");
+        }
+        getElement().setProperty("_filterDebounce", filterDebounce);
+    }
+
+    /**
+     * Gets the time in milliseconds the filter has to stay unchanged before
+     * the items matching it are requested from the server.
+     *
+     * @return the delay in milliseconds
+     * @see #setFilterDebounce(int)
+     */
+    public int getFilterDebounce() {
+        return getElement().getProperty("_filterDebounce",
+                DEFAULT_FILTER_DEBOUNCE);
+    }
+
+    /**
+     * Enables or disables tuning the filter debounce from the measured round
+     * trip times of the filter requests.
+     * <p>
+     * When enabled, the delay set with {@link #setFilterDebounce(int)} is
+     * only used until the first response is received. After that the delay
+     * follows the average time the server takes to respond to a filter, so
+     * that a new request is not sent before the previous one could have been
+     * answered. The adaptive delay is kept between 50 and 2000 milliseconds.
+     * <p>
+     * Adaptive filter debounce is disabled by default.
+     *
+     * @param adaptiveFilterDebounce
+     *            {@code true} to enable adaptive filter debounce,
+     *            {@code false} to use a fixed delay
+     */
+    public void setAdaptiveFilterDebounce(boolean adaptiveFilterDebounce) {
+        getElement().setProperty("_adaptiveFilterDebounce",
+                adaptiveFilterDebounce);
+    }
+
+    /**
+     * Gets whether the filter debounce is tuned from the measured round trip
+     * times of the filter requests.
+     *
+     * @return {@code true} if adaptive filter debounce is enabled,
+     *         {@code false} otherwise
+     * @see #setAdaptiveFilterDebounce(boolean)
+     */
+    public boolean isAdaptiveFilterDebounce() {
+        return getElement().getProperty("_adaptiveFilterDebounce", false);
+    }
+
+    /**
+     * Enables or disables sending the pages of items in a compact encoding.
+     * <p>
+     * By default each item is sent as an object, repeating the names of its
+     * fields, eg. the key, the label and the fields of the renderer. When the
+     * compact encoding is enabled, the field names are sent once per update
+     * and each item as an array of the field values, which reduces the size
+     * of the responses especially for short labels. The items are expanded
+     * back to objects in the browser when their page is displayed.
+     * <p>
+     * The compact encoding is disabled by default.
+     *
+     * @param compactItemEncoding
+     *            {@code true} to enable the compact encoding, {@code false}
+     *            to send the items as objects
+     */
+    public void setCompactItemEncoding(boolean compactItemEncoding) {
+        this.compactItemEncoding = compactItemEncoding;
+    }
+
+    /**
+     * Gets whether the pages of items are sent in a compact encoding.
+     *
+     * @return {@code true} if the compact encoding is enabled, {@code false}
+     *         otherwise
+     * @see #setCompactItemEncoding(boolean)
+     */
+    public boolean isCompactItemEncoding() {
+        return compactItemEncoding;
+    }
+
     /**
      * Enables or disables the component firing events for custom string input.
      * <p>
@@ -654,10 +1402,12 @@ public class MultiselectComboBox<T>
 
     private void reset() {
         lastFilter = null;
+        cacheGeneration++;
         if (dataCommunicator != null) {
             dataCommunicator.setPageSize(getPageSize());
             dataCommunicator.setRequestedRange(0, 0);
             dataCommunicator.reset();
+            dataCommunicator.releaseInactiveKeys();
         }
         runBeforeClientResponse(ui -> ui.getPage().executeJs(
                 // If-statement is needed because on the first attach this
@@ -669,6 +1419,16 @@ public class MultiselectComboBox<T>
         if (item == null) {
             return "";
         }
+        String label = itemCache.getLabel(item);
+        if (label != null) {
+            return label;
+        }
+        label = applyItemLabelGenerator(item);
+        itemCache.putLabel(item, label);
+        return label;
+    }
+
+    private String applyItemLabelGenerator(T item) {
         String label = getItemLabelGenerator().apply(item);
         if (label == null) {
             throw new IllegalStateException(String.format(
@@ -680,9 +1440,18 @@ public class MultiselectComboBox<T>
     }
 
     private JsonObject generateJson(T item) {
-        JsonObject jsonObject = Json.createObject();
-        jsonObject.put(ITEM_VALUE_PATH, getKeyMapper().key(item));
-        dataGenerator.generateData(item, jsonObject);
+        // the key is always mapped, so that the item stays resolvable
+        String key = getKeyMapper().key(item);
+        JsonObject jsonObject = item == null ? null
+                : itemCache.getJson(item, key);
+        if (jsonObject == null) {
+            jsonObject = Json.createObject();
+            jsonObject.put(ITEM_VALUE_PATH, key);
+            dataGenerator.generateData(item, jsonObject);
+            if (item != null) {
+                itemCache.putJson(item, jsonObject);
+            }
+        }
         return jsonObject;
     }
 
@@ -698,10 +1467,42 @@ public class MultiselectComboBox<T>
 
     @Override
     public void updateSelection(Set<T> addedItems, Set<T> removedItems) {
-        Set<T> value = new HashSet<>(getValue());
-        value.addAll(addedItems);
-        value.removeAll(removedItems);
-        setValue(value);
+        // the value set by ids is fetched before it is changed
+        resolvePendingValue();
+        if (getValue() instanceof MatchingItemsSelection) {
+            setValue(updateMatchingSelection(
+                    (MatchingItemsSelection<T>) getValue(), addedItems,
+                    removedItems));
+            return;
+        }
+        Set<T> previousValue = getValue();
+        SelectionSet<T> previousItems = getValueItems();
+        Set<T> addedByChange = new HashSet<>();
+        Set<T> removedByChange = new HashSet<>();
+        for (T item : addedItems) {
+            if (!removedItems.contains(item)
+                    && !previousItems.contains(item)) {
+                addedByChange.add(item);
+            }
+        }
+        for (T item : removedItems) {
+            if (previousItems.contains(item)) {
+                removedByChange.add(item);
+            }
+        }
+        if (addedByChange.isEmpty() && removedByChange.isEmpty()) {
+            return;
+        }
+        Set<T> value = previousItems.with(addedByChange, removedByChange);
+        // the change is kept for setPresentationValue, which then sends only
+        // the changed items to the client
+        selectionChange = new SelectionChange<>(previousValue, value,
+                addedByChange, removedByChange);
+        try {
+            setValue(value);
+        } finally {
+            selectionChange = null;
+        }
     }
 
     @Override
@@ -771,45 +1572,311 @@ public class MultiselectComboBox<T>
                 dataGeneratorRegistration = dataGenerator
                     .addDataGenerator(rendering.getDataGenerator().get());
             }
+            itemCache.invalidateJson();
+            cacheGeneration++;
 
             reset();
         });
     }
 
     @ClientCallable
-    private void confirmUpdate(int id) {
+    void confirmUpdate(int id) {
+        if (metrics != null && sentUpdates != null) {
+            Long sent = sentUpdates.remove(id);
+            if (sent != null) {
+                metrics.updateConfirmed(metricsId, System.nanoTime() - sent);
+            }
+            // earlier updates are confirmed together with this one
+            sentUpdates.keySet().removeIf(updateId -> updateId < id);
+        }
         dataCommunicator.confirmUpdate(id);
     }
 
     @ClientCallable
-    private void setRequestedRange(int start, int length, String filter) {
-        dataCommunicator.setRequestedRange(start, length);
+    void setRequestedRange(int start, int length, String filter) {
+        if (dataCommunicator != null && dataCommunicator.isDeferred()) {
+            // the client requests the range again after the reset
+            activateData();
+            return;
+        }
+        if (metrics != null && !Objects.equals(filter, lastFilter)) {
+            metrics.filterRequested(metricsId);
+        }
+        if (asyncFetchItems != null) {
+            fetchAsync(Math.max(0, start), Math.max(0, length), filter);
+            return;
+        }
+        // the connector requests only the window of pages it is missing, the
+        // pages loaded before stay on the client
+        dataCommunicator.setRequestedRange(Math.max(0, start),
+                Math.max(0, length));
         filterSlot.accept(filter);
     }
 
-    @ClientCallable
-    private void resetDataCommunicator() {
-        dataCommunicator.reset();
+    /**
+     * Starts fetching the requested range without blocking the session, and
+     * passes the range to the data communicator once the items have been
+     * delivered. The client keeps waiting for the range until then.
+     */
+    private void fetchAsync(int start, int length, String filter) {
+        // the results of the previous request would be discarded anyway
+        cancelPendingAsyncFetch();
+        int requestId = asyncRequestId;
+        long startNanos = System.nanoTime();
+        UI ui = getUI().orElseThrow(() -> new IllegalStateException(
+                "Items can only be fetched while attached"));
+        String fetchFilter = filter == null ? "" : filter;
+
+        CompletableFuture<List<T>> future;
+        try {
+            future = asyncFetchItems.fetchItems(fetchFilter, start, length);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        pendingAsyncFetch = future;
+        future.whenComplete((items, error) -> {
+            Command delivery = () -> deliverAsyncItems(requestId, startNanos,
+                    start, length, filter, items, error);
+            VaadinSession session = ui.getSession();
+            if (session == null) {
+                // the UI was detached from its session, nothing to deliver to
+                // and no lock to deliver with
+                return;
+            }
+            if (session.hasLock()) {
+                // completed while handling the request
+                delivery.execute();
+            } else {
+                ui.access(delivery);
+            }
+        });
     }
 
-    @ClientCallable
-    private void notifyReady() {
-        // init data connector when shadow-dom is ready
-        getElement().executeJs("$0.$connector.initDataConnector()");
+    /**
+     * Cancels the pending asynchronous fetch, if any, and makes sure that its
+     * results are discarded even if the fetch does not react to cancelling.
+     */
+    private void cancelPendingAsyncFetch() {
+        asyncRequestId++;
+        if (pendingAsyncFetch != null) {
+            pendingAsyncFetch.cancel(true);
+            pendingAsyncFetch = null;
+        }
     }
 
-    /**
-     * {@inheritDoc}
-     * <p>
-     * Filtering will use a case insensitive match to show all items where the
-     * filter text is a substring of the label displayed for that item, which
+    private void deliverAsyncItems(int requestId, long startNanos, int start,
+            int length, String filter, List<T> items, Throwable error) {
+        if (requestId != asyncRequestId) {
+            // superseded by a newer range, filter or data provider
+            return;
+        }
+        pendingAsyncFetch = null;
+        if (metrics != null && error == null) {
+            metrics.itemsFetched(metricsId, System.nanoTime() - startNanos,
+                    items == null ? 0 : items.size());
+        }
+        asyncItems.set(filter == null ? "" : filter, start,
+                error == null && items != null ? items
+                        : Collections.emptyList());
+
+        dataCommunicator.setRequestedRange(start, length);
+        filterSlot.accept(filter);
+        // send the range even if it was requested before with other items
+        dataCommunicator.reset();
+
+        if (error != null) {
+            VaadinSession session = VaadinSession.getCurrent();
+            if (session == null) {
+                throw new IllegalStateException("Fetching items failed",
+                        error);
+            }
+            session.getErrorHandler().error(new ErrorEvent(error));
+        }
+    }
+
+    @ClientCallable
+    void updateSelectedItems(JsonArray addedKeys,
+            JsonArray removedKeys) {
+        if (getSyncedSelection() == null || dataCommunicator == null) {
+            // client is out of sync, overwrite it with the server value
+            resyncSelection(getValue());
+            return;
+        }
+        if (getValue() instanceof MatchingItemsSelection) {
+            // items picked while the summary is shown are already selected,
+            // unless they were excluded
+            Set<T> addedItems = new HashSet<>();
+            for (int i = 0; i < addedKeys.length(); i++) {
+                T item = getKeyMapper().get(addedKeys.getString(i));
+                if (item != null) {
+                    addedItems.add(item);
+                }
+            }
+            setModelValue(updateMatchingSelection(
+                    (MatchingItemsSelection<T>) getValue(), addedItems,
+                    Collections.emptySet()), true);
+            resyncSelection(getValue());
+            return;
+        }
+
+        boolean unknownKeys = false;
+        List<String> syncedRemovedKeys = new ArrayList<>();
+        Map<String, T> syncedAddedItems = new HashMap<>();
+        Set<T> removedItems = new HashSet<>();
+        Set<T> addedItems = new HashSet<>();
+
+        for (int i = 0; i < removedKeys.length(); i++) {
+            String key = removedKeys.getString(i);
+            T item = syncedSelection.get(key);
+            if (item != null) {
+                syncedRemovedKeys.add(key);
+                removedItems.add(item);
+            }
+        }
+        for (int i = 0; i < addedKeys.length(); i++) {
+            String key = addedKeys.getString(i);
+            T item = getKeyMapper().get(key);
+            if (item == null) {
+                unknownKeys = true;
+            } else if (!syncedSelection.contains(item)) {
+                syncedAddedItems.put(key, item);
+                addedItems.add(item);
+            }
+        }
+
+        if (syncedRemovedKeys.isEmpty() && syncedAddedItems.isEmpty()) {
+            if (unknownKeys) {
+                resyncSelection(getValue());
+            }
+            return;
+        }
+        SelectionSet<T> value = getValueItems().with(addedItems,
+                removedItems);
+        setModelValue(value, true);
+        if (unknownKeys || getValue() != value) {
+            // the value was changed by a listener or not accepted
+            resyncSelection(getValue());
+            return;
+        }
+        // the client selection is known once the value has been accepted
+        syncedRemovedKeys.forEach(syncedSelection::remove);
+        syncedAddedItems.forEach((key, item) -> syncedSelection.put(item, key));
+        syncedValue = value;
+        syncedItems = value;
+        dataCommunicator.updatePinnedKeys(syncedAddedItems.keySet(),
+                syncedRemovedKeys);
+    }
+
+    @ClientCallable
+    void setSelectedItems(JsonArray selectedItems) {
+        // fallback used by the connector when it has no known selection to
+        // compute a delta against
+        // the value set by ids is fetched before it is replaced
+        resolvePendingValue();
+        Set<T> value = presentationToModel(this, selectedItems);
+        setModelValue(value, true);
+        if (!valueEquals(getValue(), value)) {
+            // the value was changed by a listener or not accepted
+            resyncSelection(getValue());
+            return;
+        }
+        // the client selection is known once the value has been accepted
+        SyncedSelection<T> synced = new SyncedSelection<>();
+        for (int i = 0; i < selectedItems.length(); i++) {
+            String key = selectedItems.getObject(i).getString(ITEM_VALUE_PATH);
+            T item = getKeyMapper().get(key);
+            if (item != null) {
+                synced.put(item, key);
+            }
+        }
+        syncedSelection = synced;
+        syncedValue = getValue();
+        syncedItems = SelectionSet.of(syncedValue);
+        updatePinnedKeys();
+    }
+
+    @ClientCallable
+    private void resetDataCommunicator() {
+        dataCommunicator.reset();
+    }
+
+    /**
+     * Sets whether the data provider is queried only once the drop-down is
+     * opened or filtered for the first time. Until then, the items are not
+     * counted nor fetched, only the selected items are sent to the client.
+     * Useful for views with many combo boxes of which only a few are used.
+     * <p>
+     * Lazy activation is disabled by default. Disabling it loads the data
+     * immediately.
+     *
+     * @param lazyActivation
+     *            {@code true} to defer loading the data until it is needed,
+     *            {@code false} to load it immediately
+     */
+    public void setLazyActivation(boolean lazyActivation) {
+        this.lazyActivation = lazyActivation;
+        if (!lazyActivation) {
+            activateData();
+        } else if (!dataActivated && dataCommunicator != null) {
+            dataCommunicator.setDeferred(true);
+            getElement().setProperty("_lazyActivation", true);
+        }
+    }
+
+    /**
+     * Gets whether the data provider is queried only once the drop-down is
+     * opened or filtered for the first time.
+     *
+     * @return {@code true} if lazy activation is enabled
+     * @see #setLazyActivation(boolean)
+     */
+    public boolean isLazyActivation() {
+        return lazyActivation;
+    }
+
+    @ClientCallable
+    private void activateData() {
+        dataActivated = true;
+        if (dataCommunicator != null && dataCommunicator.isDeferred()) {
+            dataCommunicator.setDeferred(false);
+            getElement().setProperty("_lazyActivation", false);
+            refreshAllData(serverSideFilteringForced);
+        }
+    }
+
+    @ClientCallable
+    private void releaseKeys(JsonArray keys) {
+        // the client dropped the items of these keys from all its caches
+        if (dataCommunicator != null) {
+            List<String> released = new ArrayList<>(keys.length());
+            for (int i = 0; i < keys.length(); i++) {
+                released.add(keys.getString(i));
+            }
+            dataCommunicator.releaseKeys(released);
+        }
+    }
+
+    @ClientCallable
+    private void notifyReady() {
+        // init data connector when shadow-dom is ready
+        getElement().executeJs("$0.$connector.initDataConnector()");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Filtering will use a case insensitive match to show all items where the
+     * filter text is a substring of the label displayed for that item, which
      * you can configure with
      * {@link #setItemLabelGenerator(ItemLabelGenerator)}.
      * <p>
      * Filtering will be handled in the client-side if the size of the data set
-     * is less than the page size. To force client-side filtering with a larger
-     * data set (at the cost of increased network traffic), you can increase the
-     * page size with {@link #setPageSize(int)}.
+     * is at most the client-side filter threshold, which is the page size by
+     * default. To force client-side filtering with a larger data set (at the
+     * cost of increased network traffic), you can increase the
+     * client-side filter threshold with
+     * {@link #setClientSideFilterThreshold(int)}.
      * <p>
      * Setting the items creates a new DataProvider, which in turn resets the
      * multiselect combo box's value to {@code null}. If you want to add and
@@ -829,8 +1896,8 @@ public class MultiselectComboBox<T>
      * <p>
      * Note that defining a custom filter will force the component to make
      * server round trips to handle the filtering. Otherwise, it can handle
-     * filtering in the client-side, if the size of the data set is less than
-     * the {@link #setPageSize(int) pageSize}.
+     * filtering in the client-side, if the size of the data set is at most the
+     * {@link #setClientSideFilterThreshold(int) client-side filter threshold}.
      * <p>
      * Setting the items creates a new DataProvider, which in turn resets the
      * combo box's value to {@code null}. If you want to add and remove items to
@@ -857,8 +1924,8 @@ public class MultiselectComboBox<T>
      * <p>
      * Note that defining a custom filter will force the component to make
      * server round trips to handle the filtering. Otherwise it can handle
-     * filtering in the client-side, if the size of the data set is less than
-     * the {@link #setPageSize(int) pageSize}.
+     * filtering in the client-side, if the size of the data set is at most the
+     * {@link #setClientSideFilterThreshold(int) client-side filter threshold}.
      * <p>
      * Setting the items creates a new DataProvider, which in turn resets the
      * combo box's value to {@code null}. If you want to add and remove items to
@@ -912,6 +1979,13 @@ public class MultiselectComboBox<T>
      * <p>
      * Changing the multiselect combo box's data provider resets its current
      * value to {@code null}.
+     * <p>
+     * The data provider can be shared by components of different sessions,
+     * eg. a {@link CachingDataProvider} in a static field. The component
+     * only listens to the data provider while it is attached, and applies
+     * the changes with {@link UI#access(com.vaadin.flow.server.Command)}
+     * when they are fired by a thread that does not hold the lock of its
+     * session.
      */
     @Override
     public <C> void setDataProvider(DataProvider<T, C> dataProvider,
@@ -922,6 +1996,12 @@ public class MultiselectComboBox<T>
         Objects.requireNonNull(filterConverter,
                 "filterConverter cannot be null");
 
+        // pending asynchronous fetches are cancelled
+        asyncFetchItems = null;
+        asyncItems = null;
+        cancelPendingAsyncFetch();
+        normalizedLabels = null;
+
         if (userProvidedFilter == UserProvidedFilter.UNDECIDED) {
             userProvidedFilter = UserProvidedFilter.YES;
         }
@@ -934,10 +2014,25 @@ public class MultiselectComboBox<T>
             if (uniqueKeyDataGenerator != null) {
             	dataCommunicator.setUniqueKeyDataGenerator(uniqueKeyDataGenerator);
             }
+            dataCommunicator.setItemLookup(this::findItemById);
+            // the client holds the selected items regardless of its caches
+            updatePinnedKeys();
+        }
+        dataCommunicator.setMetrics(metrics, metricsId);
+        if (lazyActivation && !dataActivated) {
+            dataCommunicator.setDeferred(true);
+            getElement().setProperty("_lazyActivation", true);
         }
+        // items are counted unless set with setDataProvider(FetchItemsCallback)
+        dataCommunicator.setDefinedSize(true);
 
         scheduleRender();
-        setValue(null);
+        if (pendingValue == null) {
+            setValue(null);
+        } else {
+            // a value set by ids is kept until it is sent with the new items
+            runBeforeClientResponse(ui -> resolvePendingValue());
+        }
 
         SerializableFunction<String, C> convertOrNull = filterText -> {
             if (filterText == null) {
@@ -946,32 +2041,79 @@ public class MultiselectComboBox<T>
 
             return filterConverter.apply(filterText);
         };
+        this.filterConverter = convertOrNull;
 
         SerializableConsumer<C> providerFilterSlot = dataCommunicator
                 .setDataProvider(dataProvider, convertOrNull.apply(null));
 
         filterSlot = filter -> {
             if (!Objects.equals(filter, lastFilter)) {
+                // the keys are not released, as the client keeps the pages
+                // of recent filters and releases the keys of the pages it
+                // drops, see releaseKeys
                 providerFilterSlot.accept(convertOrNull.apply(filter));
                 lastFilter = filter;
             }
         };
 
         boolean shouldForceServerSideFiltering = userProvidedFilter == UserProvidedFilter.YES;
+        serverSideFilteringForced = shouldForceServerSideFiltering;
 
-        dataProvider.addDataProviderListener(e -> {
-            if (e instanceof DataChangeEvent.DataRefreshEvent) {
-                dataCommunicator.refresh(
-                        ((DataChangeEvent.DataRefreshEvent<T>) e).getItem());
-            } else {
-                refreshAllData(shouldForceServerSideFiltering);
-            }
-        });
+        removeDataProviderListener();
+        if (getElement().getNode().isAttached()) {
+            addDataProviderListener();
+        }
+        dataChangesMissed = false;
         refreshAllData(shouldForceServerSideFiltering);
 
         userProvidedFilter = UserProvidedFilter.UNDECIDED;
     }
 
+    private void addDataProviderListener() {
+        dataProviderListenerRegistration = getDataProvider()
+                .addDataProviderListener(e -> {
+                    UI ui = getUI().orElse(null);
+                    VaadinSession session = ui == null ? null
+                            : ui.getSession();
+                    if (session == null || session.hasLock()) {
+                        // the UI is not bound to a session yet, so nothing
+                        // else accesses it
+                        onDataChange(e);
+                    } else {
+                        // fired for another session of a shared provider
+                        ui.access(() -> onDataChange(e));
+                    }
+                });
+    }
+
+    private void removeDataProviderListener() {
+        if (dataProviderListenerRegistration != null) {
+            dataProviderListenerRegistration.remove();
+            dataProviderListenerRegistration = null;
+        }
+    }
+
+    private void onDataChange(DataChangeEvent<T> e) {
+        if (dataProviderListenerRegistration == null) {
+            // detached while waiting for the session lock
+            return;
+        }
+        if (e instanceof DataChangeEvent.DataRefreshEvent) {
+            T item = ((DataChangeEvent.DataRefreshEvent<T>) e).getItem();
+            if (normalizedLabels != null
+                    && normalizedLabels.containsKey(item)) {
+                normalizedLabels.put(item,
+                        normalizeLabel(item, normalizedLabelsLocale));
+            }
+            filterGeneration++;
+            itemCache.remove(item);
+            cacheGeneration++;
+            dataCommunicator.refresh(item);
+        } else {
+            refreshAllData(serverSideFilteringForced);
+        }
+    }
+
     /**
      * Sets a list data provider as the data provider of this multiselect combo
      * box.
@@ -982,9 +2124,11 @@ public class MultiselectComboBox<T>
      * {@link #setItemLabelGenerator(ItemLabelGenerator)}.
      * <p>
      * Filtering will be handled in the client-side if the size of the data set
-     * is less than the page size. To force client-side filtering with a larger
-     * data set (at the cost of increased network traffic), you can increase the
-     * page size with {@link #setPageSize(int)}.
+     * is at most the client-side filter threshold, which is the page size by
+     * default. To force client-side filtering with a larger data set (at the
+     * cost of increased network traffic), you can increase the
+     * client-side filter threshold with
+     * {@link #setClientSideFilterThreshold(int)}.
      * <p>
      * Changing the multiselect combo box's data provider resets its current
      * value to {@code null}.
@@ -997,13 +2141,62 @@ public class MultiselectComboBox<T>
             userProvidedFilter = UserProvidedFilter.NO;
         }
 
+        Objects.requireNonNull(listDataProvider,
+                "List data provider cannot be null");
+
         // Cannot use the case insensitive contains shorthand from
-        // ListDataProvider since it wouldn't react to locale changes
-        ItemFilter<T> defaultItemFilter = (item,
-                filterText) -> generateLabel(item).toLowerCase(getLocale())
-                        .contains(filterText.toLowerCase(getLocale()));
+        // ListDataProvider since it wouldn't react to locale changes. The
+        // filter text is normalized once per filter and the item labels once
+        // per data provider and locale, instead of both for every item on
+        // every request. The labels are looked up for every item rather than
+        // captured, as the filter is kept and serialized by the data
+        // communicator.
+        setDataProvider(listDataProvider, filterText -> {
+            Locale locale = getLocale();
+            String normalizedFilter = filterText.toLowerCase(locale);
+            // normalized before filtering, unless already done
+            getNormalizedLabels(locale);
+            return item -> getNormalizedLabel(item, locale)
+                    .contains(normalizedFilter);
+        });
+        // selections of all matching items may be used outside of the
+        // session lock, so they filter without the caches of the component
+        filterConverter = filterText -> {
+            if (filterText == null) {
+                return null;
+            }
+            Locale locale = getLocale();
+            String normalizedFilter = filterText.toLowerCase(locale);
+            return (SerializablePredicate<T>) item -> applyItemLabelGenerator(
+                    item).toLowerCase(locale).contains(normalizedFilter);
+        };
+    }
 
-        setDataProvider(defaultItemFilter, listDataProvider);
+    private String normalizeLabel(T item, Locale locale) {
+        return applyItemLabelGenerator(item).toLowerCase(locale);
+    }
+
+    private String getNormalizedLabel(T item, Locale locale) {
+        String label = getNormalizedLabels(locale).get(item);
+        // items added to the list without refreshing the data provider are
+        // normalized for every request until it is refreshed
+        return label == null ? normalizeLabel(item, locale) : label;
+    }
+
+    private Map<T, String> getNormalizedLabels(Locale locale) {
+        if (normalizedLabels == null
+                || !locale.equals(normalizedLabelsLocale)) {
+            normalizedLabels = new IdentityHashMap<>();
+            normalizedLabelsLocale = locale;
+            DataProvider<T, ?> dataProvider = getDataProvider();
+            if (dataProvider instanceof ListDataProvider) {
+                for (T item : ((ListDataProvider<T>) dataProvider)
+                        .getItems()) {
+                    normalizedLabels.put(item, normalizeLabel(item, locale));
+                }
+            }
+        }
+        return normalizedLabels;
     }
 
     /**
@@ -1013,19 +2206,27 @@ public class MultiselectComboBox<T>
      * This method is a shorthand for making a {@link CallbackDataProvider} that
      * handles a partial Query object.
      * <p>
+     * If the size callback is {@code null}, the size of the data set is not
+     * known beforehand, see {@link #setDataProvider(FetchItemsCallback)}.
+     * <p>
      * Changing the multiselect combo box's data provider resets its current
      * value to {@code null}.
      *
      * @param fetchItems
      *            a callback for fetching items
      * @param sizeCallback
-     *            a callback for getting the count of items
+     *            a callback for getting the count of items, or {@code null}
+     *            to not count the items
      *
      * @see CallbackDataProvider
      * @see #setDataProvider(DataProvider)
      */
     public void setDataProvider(FetchItemsCallback<T> fetchItems,
             SerializableFunction<String, Integer> sizeCallback) {
+        if (sizeCallback == null) {
+            setDataProvider(fetchItems);
+            return;
+        }
         userProvidedFilter = UserProvidedFilter.YES;
         setDataProvider(new CallbackDataProvider<>(
                 q -> fetchItems.fetchItems(q.getFilter().orElse(""),
@@ -1033,6 +2234,140 @@ public class MultiselectComboBox<T>
                 q -> sizeCallback.apply(q.getFilter().orElse(""))));
     }
 
+    /**
+     * Sets a CallbackDataProvider using the given fetch items callback,
+     * without a size callback.
+     * <p>
+     * The items are never counted. The multiselect combo box starts with an
+     * estimated size, which grows while the user scrolls, and infers the
+     * actual size once a fetch returns fewer items than requested. Use this
+     * when counting the items of the backend is expensive.
+     * <p>
+     * Changing the multiselect combo box's data provider resets its current
+     * value to {@code null}.
+     *
+     * @param fetchItems
+     *            a callback for fetching items, not {@code null}
+     *
+     * @see #setDataProvider(FetchItemsCallback, SerializableFunction)
+     */
+    public void setDataProvider(FetchItemsCallback<T> fetchItems) {
+        Objects.requireNonNull(fetchItems,
+                "The fetch items callback can not be null");
+        userProvidedFilter = UserProvidedFilter.YES;
+        setDataProvider(new CallbackDataProvider<>(
+                q -> fetchItems.fetchItems(q.getFilter().orElse(""),
+                        q.getOffset(), q.getLimit()),
+                q -> {
+                    throw new IllegalStateException(
+                            "The data provider of the MultiselectComboBox "
+                                    + "was set without a size callback, "
+                                    + "so it can not be counted");
+                }));
+        dataCommunicator.setDefinedSize(false);
+    }
+
+    /**
+     * Sets a data provider that fetches the items asynchronously, without
+     * holding the session lock.
+     * <p>
+     * When the client requests items, the callback is called and the request
+     * handling returns immediately, so other interactions with the UI are not
+     * blocked while the query runs. The items are delivered to the client
+     * with {@link UI#access(Command)} when the returned future completes,
+     * which requires server push to be enabled, eg. with the {@code @Push}
+     * annotation. Results of requests that were superseded in the meantime,
+     * eg. because the user changed the filter, are discarded, and the future
+     * returned for them is cancelled so that the backend can stop the query,
+     * eg. by checking {@link CompletableFuture#isCancelled()}. If the future
+     * completes exceptionally, no items are shown and the error is passed to
+     * the error handler of the session.
+     * <p>
+     * As with {@link #setDataProvider(FetchItemsCallback)}, the items are
+     * never counted.
+     * <p>
+     * Changing the multiselect combo box's data provider resets its current
+     * value to {@code null}.
+     *
+     * @param fetchItems
+     *            a callback for fetching items asynchronously, not
+     *            {@code null}
+     *
+     * @see #setAsyncDataProvider(FetchItemsCallback, Executor)
+     */
+    public void setAsyncDataProvider(AsyncFetchItemsCallback<T> fetchItems) {
+        Objects.requireNonNull(fetchItems,
+                "The fetch items callback can not be null");
+        AsyncItems<T> loadedItems = new AsyncItems<>();
+        setDataProvider((FetchItemsCallback<T>) loadedItems::fetch);
+        asyncItems = loadedItems;
+        asyncFetchItems = fetchItems;
+        // only the delivered items are fetched from the data provider, the
+        // fetches are measured in deliverAsyncItems instead
+        dataCommunicator.setMetrics(null, metricsId);
+    }
+
+    /**
+     * Sets a data provider that fetches the items with the given callback in
+     * the given executor, without holding the session lock. For blocking
+     * backend calls on Java 21 or newer, an executor creating a virtual thread
+     * per task can be used. When a fetch is superseded, the thread running it
+     * is interrupted.
+     * <p>
+     * See {@link #setAsyncDataProvider(AsyncFetchItemsCallback)} for how the
+     * items are delivered.
+     *
+     * @param fetchItems
+     *            a callback for fetching items, not {@code null}
+     * @param executor
+     *            the executor running the callback, not {@code null}
+     */
+    public void setAsyncDataProvider(FetchItemsCallback<T> fetchItems,
+            Executor executor) {
+        Objects.requireNonNull(fetchItems,
+                "The fetch items callback can not be null");
+        Objects.requireNonNull(executor, "The executor can not be null");
+        setAsyncDataProvider((filter, offset, limit) -> fetchInterruptibly(
+                () -> {
+                    try (Stream<T> items = fetchItems.fetchItems(filter,
+                            offset, limit)) {
+                        return items.collect(Collectors.toList());
+                    }
+                }, executor));
+    }
+
+    /**
+     * Runs the given fetch in the given executor. Unlike with
+     * {@link CompletableFuture#supplyAsync}, cancelling the returned future
+     * interrupts the thread running the fetch, so that blocking backend calls
+     * can stop early.
+     */
+    static <T> CompletableFuture<List<T>> fetchInterruptibly(
+            Callable<List<T>> fetch, Executor executor) {
+        CompletableFuture<List<T>> result = new CompletableFuture<>();
+        FutureTask<List<T>> task = new FutureTask<List<T>>(fetch) {
+            @Override
+            protected void done() {
+                try {
+                    result.complete(get());
+                } catch (CancellationException e) {
+                    result.cancel(false);
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        result.whenComplete((items, error) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        executor.execute(task);
+        return result;
+    }
+
     /**
      * Sets a list data provider with an item filter as the data provider of
      * this multiselect combo box. The item filter is used to compare each item
@@ -1040,8 +2375,8 @@ public class MultiselectComboBox<T>
      * <p>
      * Note that defining a custom filter will force the component to make
      * server round trips to handle the filtering. Otherwise it can handle
-     * filtering in the client-side, if the size of the data set is less than
-     * the {@link #setPageSize(int) pageSize}.
+     * filtering in the client-side, if the size of the data set is at most the
+     * {@link #setClientSideFilterThreshold(int) client-side filter threshold}.
      * <p>
      * Changing the multiselect combo box's data provider resets its current
      * value to {@code null}.
@@ -1062,14 +2397,35 @@ public class MultiselectComboBox<T>
     }
 
     private void refreshAllData(boolean forceServerSideFiltering) {
-        setClientSideFilter(!forceServerSideFiltering && getDataProvider()
-                .size(new Query<>()) <= getPageSizeDouble());
+        normalizedLabels = null;
+        filterGeneration++;
+        itemCache.clear();
+        if (dataCommunicator.isDeferred()) {
+            // decided once the data is activated
+            setClientSideFilter(false);
+        } else {
+            setClientSideFilter(!forceServerSideFiltering
+                    && hasAtMostItems(getClientSideFilterThreshold()));
+        }
 
         reset();
     }
 
-    private double getPageSizeDouble() {
-        return getElement().getProperty("pageSize", 0.0);
+    /**
+     * Checks whether the data provider has at most the given number of items.
+     * Only in-memory data providers are counted. Of any other data provider,
+     * which may not even support counting, at most one item more than the
+     * limit is fetched.
+     */
+    private boolean hasAtMostItems(int limit) {
+        DataProvider<T, ?> dataProvider = getDataProvider();
+        if (dataProvider.isInMemory()) {
+            return dataProvider.size(new Query<>()) <= limit;
+        }
+        try (Stream<T> items = dataProvider.fetch(new Query<>(0, limit + 1,
+                Collections.emptyList(), null, null))) {
+            return items.count() <= limit;
+        }
     }
 
     private void setClientSideFilter(boolean clientSideFilter) {
@@ -1135,6 +2491,50 @@ public class MultiselectComboBox<T>
        }
     }
 
+    /**
+     * Sets the callback fetching the items whose keys were evicted while the
+     * client may still show them, eg. when an item of a page loaded long ago
+     * is selected. The items of in-memory data providers are found without
+     * a callback. Without a callback, the selection of such an item is
+     * ignored and the client is synchronized again.
+     *
+     * @param evictedItemsCallback
+     *            the callback fetching items by the ids of the data provider,
+     *            or {@code null} to not fetch them
+     * @param <ID>
+     *            the type of the item ids
+     */
+    @SuppressWarnings("unchecked")
+    public <ID> void setEvictedItemsCallback(
+            FetchByIdsCallback<T, ID> evictedItemsCallback) {
+        this.evictedItemsCallback = (FetchByIdsCallback<T, Object>) evictedItemsCallback;
+    }
+
+    /**
+     * Finds the item with the given id of the data provider, used to resolve
+     * the keys evicted by the key mapper.
+     */
+    private T findItemById(Object id) {
+        DataProvider<T, ?> dataProvider = getDataProvider();
+        Collection<T> candidates;
+        if (dataProvider instanceof ListDataProvider) {
+            candidates = ((ListDataProvider<T>) dataProvider).getItems();
+        } else if (dataProvider instanceof IndexedListDataProvider) {
+            candidates = ((IndexedListDataProvider<T>) dataProvider).getItems();
+        } else if (evictedItemsCallback != null) {
+            candidates = evictedItemsCallback
+                    .fetchByIds(Collections.singletonList(id));
+        } else {
+            return null;
+        }
+        for (T item : candidates) {
+            if (id.equals(dataProvider.getId(item))) {
+                return item;
+            }
+        }
+        return null;
+    }
+
     /**
      * Predicate to check {@link MultiselectComboBox} items against user typed
      * strings.
@@ -1169,6 +2569,79 @@ public class MultiselectComboBox<T>
         public Stream<T> fetchItems(String filter, int offset, int limit);
     }
 
+    /**
+     * A callback method for fetching items asynchronously. The callback is
+     * provided with a non-null string filter, offset index and limit.
+     *
+     * @param <T>
+     *            item (bean) type in MultiselectComboBox
+     */
+    @FunctionalInterface
+    public interface AsyncFetchItemsCallback<T> extends Serializable {
+        /**
+         * Starts fetching the items that match the given filter, limiting the
+         * results with given offset and limit.
+         *
+         * @param filter
+         *            a non-null filter string
+         * @param offset
+         *            the first index to fetch
+         * @param limit
+         *            the fetched item count
+         * @return a future completed with the list of items
+         */
+        public CompletableFuture<List<T>> fetchItems(String filter,
+                int offset, int limit);
+    }
+
+    /**
+     * A callback method for fetching the items of a value set by their ids,
+     * see {@link MultiselectComboBox#setValueByIds(Collection, FetchByIdsCallback)}.
+     *
+     * @param <T>
+     *            item (bean) type in MultiselectComboBox
+     * @param <ID>
+     *            the type of the item ids
+     */
+    @FunctionalInterface
+    public interface FetchByIdsCallback<T, ID> extends Serializable {
+        /**
+         * Fetches the items with the given ids, preferably in a single
+         * query. Ids without an item are ignored.
+         *
+         * @param ids
+         *            the ids of the items to fetch
+         * @return the items with the given ids
+         */
+        public Collection<T> fetchByIds(Collection<ID> ids);
+    }
+
+    /**
+     * The range of items delivered by the last asynchronous fetch, which is
+     * what the data communicator gets when it fetches the items.
+     */
+    private static final class AsyncItems<T> implements Serializable {
+        private String filter;
+        private int offset;
+        private List<T> items = Collections.emptyList();
+
+        private void set(String filter, int offset, List<T> items) {
+            this.filter = filter;
+            this.offset = offset;
+            this.items = new ArrayList<>(items);
+        }
+
+        private Stream<T> fetch(String filter, int offset, int limit) {
+            int from = offset - this.offset;
+            if (!filter.equals(this.filter) || from < 0
+                    || from >= items.size()) {
+                return Stream.empty();
+            }
+            return items.subList(from, Math.min(items.size(), from + limit))
+                    .stream();
+        }
+    }
+
     @DomEvent("custom-values-set")
     public static class CustomValuesSetEvent<T> extends ComponentEvent<MultiselectComboBox<T>> {
         private final String detail;
@@ -1205,18 +2678,277 @@ public class MultiselectComboBox<T>
         }
     }
 
+    private static final class SyncedSelection<T> implements Serializable {
+        // only the keys are serialized, the items are restored on first use
+        private transient Map<T, String> keys = new HashMap<>();
+        private transient Map<String, T> items = new HashMap<>();
+        private transient List<String> restoredKeys;
+
+        /**
+         * Looks up the items of the keys read by deserialization.
+         *
+         * @return {@code false} if an item could not be found
+         */
+        private boolean restoreItems(Function<String, T> itemsByKey) {
+            if (restoredKeys == null) {
+                return true;
+            }
+            keys = new HashMap<>();
+            items = new HashMap<>();
+            for (String key : restoredKeys) {
+                T item = itemsByKey.apply(key);
+                if (item == null) {
+                    return false;
+                }
+                put(item, key);
+            }
+            restoredKeys = null;
+            return true;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeObject(new ArrayList<>(
+                    restoredKeys != null ? restoredKeys : items.keySet()));
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in)
+                throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            restoredKeys = (List<String>) in.readObject();
+        }
+
+        private boolean contains(T item) {
+            return keys.containsKey(item);
+        }
+
+        private boolean containsKey(String key) {
+            return items.containsKey(key);
+        }
+
+        /**
+         * Gets the keys of the selection, also before the items are restored.
+         *
+         * @return a live view of the keys
+         */
+        private Collection<String> keys() {
+            return restoredKeys != null ? restoredKeys : items.keySet();
+        }
+
+        private T get(String key) {
+            return items.get(key);
+        }
+
+        private int size() {
+            return items.size();
+        }
+
+        private void put(T item, String key) {
+            keys.put(item, key);
+            items.put(key, item);
+        }
+
+        private T remove(String key) {
+            T item = items.remove(key);
+            if (item != null) {
+                keys.remove(item);
+            }
+            return item;
+        }
+
+        private String removeItem(T item) {
+            String key = keys.remove(item);
+            if (key != null) {
+                items.remove(key);
+            }
+            return key;
+        }
+
+        /**
+         * Removes all items that are not part of the given value.
+         *
+         * @return the keys of the removed items
+         */
+        private JsonArray retainAll(Set<T> value) {
+            JsonArray removedKeys = Json.createArray();
+            Iterator<Map.Entry<T, String>> iterator = keys.entrySet()
+                    .iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<T, String> entry = iterator.next();
+                if (!value.contains(entry.getKey())) {
+                    iterator.remove();
+                    items.remove(entry.getValue());
+                    removedKeys.set(removedKeys.length(), entry.getValue());
+                }
+            }
+            return removedKeys;
+        }
+
+        /**
+         * Gets all items whose key is not one of the given keys.
+         *
+         * @return the items without the keys
+         */
+        private List<T> getItemsWithoutKeys(Set<String> retainedKeys) {
+            List<T> removed = new ArrayList<>();
+            for (Map.Entry<String, T> entry : items.entrySet()) {
+                if (!retainedKeys.contains(entry.getKey())) {
+                    removed.add(entry.getValue());
+                }
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Change of the value made with
+     * {@link MultiselectComboBox#updateSelection(Set, Set)}, ie. the items
+     * that were actually added to and removed from the previous value.
+     */
+    private static final class SelectionChange<T> {
+        private final Set<T> previousValue;
+        private final Set<T> value;
+        private final Set<T> addedItems;
+        private final Set<T> removedItems;
+
+        private SelectionChange(Set<T> previousValue, Set<T> value,
+                Set<T> addedItems, Set<T> removedItems) {
+            this.previousValue = previousValue;
+            this.value = value;
+            this.addedItems = addedItems;
+            this.removedItems = removedItems;
+        }
+    }
+
+    /**
+     * Bounded cache of the generated labels and JSON of items, evicting the
+     * least recently used items first. Instead of clearing the cache when the
+     * label generator or the renderer changes, the generation of the affected
+     * values is increased, so that older values are regenerated when used.
+     * <p>
+     * Room for the selected items is reserved on top of the maximum size, as
+     * the labels and JSON of all of them are generated whenever the selection
+     * is sent in full.
+     */
+    private static final class ItemCache<T> implements Serializable {
+        private final int maximumSize;
+        private int reservedSize;
+        private transient Map<T, CachedItem> items;
+        private int labelGeneration;
+        private int jsonGeneration;
+
+        private ItemCache(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        private Map<T, CachedItem> items() {
+            if (items == null) {
+                items = new LinkedHashMap<T, CachedItem>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<T, CachedItem> eldest) {
+                        return size() > maximumSize + reservedSize;
+                    }
+                };
+            }
+            return items;
+        }
+
+        /**
+         * Sets the number of items that may be cached on top of the maximum
+         * size, eg. the number of selected items.
+         */
+        private void reserve(int reservedSize) {
+            this.reservedSize = reservedSize;
+        }
+
+        private String getLabel(T item) {
+            CachedItem cached = items().get(item);
+            return cached != null && cached.labelGeneration == labelGeneration
+                    ? cached.label
+                    : null;
+        }
+
+        private void putLabel(T item, String label) {
+            CachedItem cached = items().computeIfAbsent(item,
+                    key -> new CachedItem());
+            cached.label = label;
+            cached.labelGeneration = labelGeneration;
+        }
+
+        private JsonObject getJson(T item, String key) {
+            CachedItem cached = items().get(item);
+            if (cached == null || cached.json == null
+                    || cached.jsonGeneration != jsonGeneration
+                    || !key.equals(cached.json.getString(ITEM_VALUE_PATH))) {
+                return null;
+            }
+            return cached.json;
+        }
+
+        private void putJson(T item, JsonObject json) {
+            CachedItem cached = items().computeIfAbsent(item,
+                    key -> new CachedItem());
+            cached.json = json;
+            cached.jsonGeneration = jsonGeneration;
+        }
+
+        private void invalidateLabels() {
+            labelGeneration++;
+            // the JSON contains the label
+            jsonGeneration++;
+        }
+
+        private void invalidateJson() {
+            jsonGeneration++;
+        }
+
+        private void remove(T item) {
+            items().remove(item);
+        }
+
+        private void clear() {
+            items().clear();
+        }
+    }
+
+    private static final class CachedItem implements Serializable {
+        private String label;
+        private int labelGeneration;
+        private JsonObject json;
+        private int jsonGeneration;
+    }
+
+    /**
+     * Collects the changes of one update and sends them to the connector in a
+     * single call when committed, instead of one call per change.
+     */
     private final class UpdateQueue implements ArrayUpdater.Update {
-        private transient List<Runnable> queue = new ArrayList<>();
+        private final int size;
+        private transient JsonArray slices = Json.createArray();
+        private int itemCount;
 
         private UpdateQueue(int size) {
-            enqueue("$connector.updateSize", size);
+            this.size = size;
         }
 
         @Override
         public void set(int start, List<JsonValue> items) {
-            enqueue("$connector.set", start,
-                    items.stream().collect(JsonUtils.asArray()),
-                    MultiselectComboBox.this.lastFilter);
+            JsonArray array;
+            if (compactItemEncoding && !items.isEmpty()) {
+                array = CompactItemEncoding.encode(items);
+            } else {
+                array = Json.createArray();
+                for (int i = 0; i < items.size(); i++) {
+                    array.set(i, items.get(i));
+                }
+            }
+            JsonArray slice = Json.createArray();
+            slice.set(0, start);
+            slice.set(1, array);
+            slices.set(slices.length(), slice);
+            itemCount += items.size();
         }
 
         @Override
@@ -1226,14 +2958,19 @@ public class MultiselectComboBox<T>
 
         @Override
         public void commit(int updateId) {
-            enqueue("$connector.confirm", updateId,
-                    MultiselectComboBox.this.lastFilter);
-            queue.forEach(Runnable::run);
-            queue.clear();
-        }
-
-        private void enqueue(String name, Serializable... arguments) {
-            queue.add(() -> getElement().callJsFunction(name, arguments));
+            if (metrics != null) {
+                metrics.updateSent(metricsId, itemCount, slices.toJson()
+                        .getBytes(StandardCharsets.UTF_8).length);
+                if (sentUpdates == null) {
+                    sentUpdates = new HashMap<>();
+                }
+                sentUpdates.put(updateId, System.nanoTime());
+            }
+            getElement().callJsFunction("$connector.update", size, slices,
+                    MultiselectComboBox.this.lastFilter, updateId,
+                    cacheGeneration);
+            slices = Json.createArray();
+            itemCount = 0;
         }
     }
 }
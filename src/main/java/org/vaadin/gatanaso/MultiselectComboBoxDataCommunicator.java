@@ -1,44 +1,35 @@
 package org.vaadin.gatanaso;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.vaadin.flow.data.provider.ArrayUpdater;
 import com.vaadin.flow.data.provider.DataCommunicator;
 import com.vaadin.flow.data.provider.DataGenerator;
-import com.vaadin.flow.data.provider.KeyMapper;
 import com.vaadin.flow.function.SerializableConsumer;
+import com.vaadin.flow.function.SerializableFunction;
 import com.vaadin.flow.internal.StateNode;
 
 import elemental.json.JsonArray;
 
 /**
  * Data communicator that handles requesting data and sending it to client side.
+ * <p>
+ * Items are keyed with a {@link MultiselectComboBoxKeyMapper}, so that the
+ * same item always gets the same key.
  *
  * @param <T> the bean type
  */
 public class MultiselectComboBoxDataCommunicator<T> extends DataCommunicator<T> {
 
-	private Function<T, Object> uniqueKeyDataGenerator = Object::hashCode;
+	private final MultiselectComboBoxKeyMapper<T> uniqueKeyMapper = new MultiselectComboBoxKeyMapper<>();
 
-	private KeyMapper<T> uniqueKeyMapper = new KeyMapper<T>() {
-
-		private T object;
-
-		@Override
-		public String key(T o) {
-			this.object = o;
-			try {
-				return super.key(o);
-			} finally {
-				this.object = null;
-			}
-		}
-
-		@Override
-		protected String createKey() {
-			return String.valueOf(uniqueKeyDataGenerator.apply(object));
-		}
-	};
+	private MultiselectComboBoxMetrics metrics;
+	private String metricsId;
+	private boolean deferred;
 
 	/**
 	 * Creates a new instance.
@@ -56,9 +47,104 @@ public class MultiselectComboBoxDataCommunicator<T> extends DataCommunicator<T>
 			StateNode stateNode) {
 
 		super(dataGenerator, arrayUpdater, dataUpdater, stateNode);
+		// the client keeps the pages it has loaded, so keys must stay valid
+		// after the items leave the requested range
+		uniqueKeyMapper.setRetainRemovedKeys(true);
 		setKeyMapper(uniqueKeyMapper);
 	}
 
+	/**
+	 * Releases the keys of items that are no longer in the requested range.
+	 * Should be called when the client side clears its loaded pages.
+	 */
+	public void releaseInactiveKeys() {
+		uniqueKeyMapper.releaseRetainedKeys();
+	}
+
+	/**
+	 * Releases the given keys if their items are no longer in the requested
+	 * range. Should be called when the client side drops the items.
+	 *
+	 * @param keys
+	 *            the keys of the dropped items
+	 */
+	public void releaseKeys(Collection<String> keys) {
+		uniqueKeyMapper.releaseRetainedKeys(keys);
+	}
+
+	/**
+	 * Sets the largest number of keys retained for items that are no longer in
+	 * the requested range but were not released by the client yet.
+	 *
+	 * @param maxRetainedKeys
+	 *            the largest number of retained keys, zero or positive
+	 * @see MultiselectComboBoxKeyMapper#setMaxRetainedKeys(int)
+	 */
+	public void setMaxRetainedKeys(int maxRetainedKeys) {
+		uniqueKeyMapper.setMaxRetainedKeys(maxRetainedKeys);
+	}
+
+	/**
+	 * Sets the keys that are kept regardless of the client caches, eg. the
+	 * keys of the selected items. The keys are copied, so they have to be set
+	 * again whenever they change.
+	 *
+	 * @param pinnedKeys
+	 *            the pinned keys, not {@code null}
+	 */
+	public void setPinnedKeys(Collection<String> pinnedKeys) {
+		uniqueKeyMapper.setPinnedKeys(pinnedKeys);
+	}
+
+	/**
+	 * Pins and unpins the given keys, keeping the other pinned keys.
+	 *
+	 * @param addedKeys
+	 *            the keys to pin, not {@code null}
+	 * @param removedKeys
+	 *            the keys to unpin, not {@code null}
+	 * @see MultiselectComboBoxKeyMapper#updatePinnedKeys(Collection, Collection)
+	 */
+	public void updatePinnedKeys(Collection<String> addedKeys,
+			Collection<String> removedKeys) {
+		uniqueKeyMapper.updatePinnedKeys(addedKeys, removedKeys);
+	}
+
+	/**
+	 * Sets the function that looks up an item by its id, which resolves the
+	 * keys of the items that were evicted while the client may still show
+	 * them.
+	 *
+	 * @param itemLookup
+	 *            the function looking up items by id, or {@code null} to not
+	 *            resolve evicted keys
+	 * @see MultiselectComboBoxKeyMapper#setItemLookup(SerializableFunction)
+	 */
+	public void setItemLookup(SerializableFunction<Object, T> itemLookup) {
+		uniqueKeyMapper.setItemLookup(itemLookup);
+	}
+
+	/**
+	 * Sets whether the data provider is left untouched for now. While
+	 * deferred, no items are fetched and the size is reported as zero.
+	 *
+	 * @param deferred
+	 *            {@code true} to not query the data provider, {@code false}
+	 *            to query it as usual
+	 */
+	public void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	/**
+	 * Gets whether the data provider is left untouched for now.
+	 *
+	 * @return {@code true} if the data provider is not queried
+	 */
+	public boolean isDeferred() {
+		return deferred;
+	}
+
 	/**
 	 * Sets the given {@link Function} as unique key data generator.
 	 * The default implementation is {@link Object#hashCode()}.
@@ -66,6 +152,58 @@ public class MultiselectComboBoxDataCommunicator<T> extends DataCommunicator<T>
 	 * @param uniqueKeyDataGenerator {@link Function} to generate unique key data
 	 */
 	public void setUniqueKeyDataGenerator(Function<T, Object> uniqueKeyDataGenerator) {
-		this.uniqueKeyDataGenerator = uniqueKeyDataGenerator;
+		uniqueKeyMapper.setUniqueKeyDataGenerator(uniqueKeyDataGenerator);
+	}
+
+	/**
+	 * Sets the listener notified of the time taken by fetching and counting
+	 * the items of the data provider.
+	 *
+	 * @param metrics
+	 *            the metrics listener, or {@code null} to not measure
+	 * @param metricsId
+	 *            the component id passed to the listener
+	 */
+	public void setMetrics(MultiselectComboBoxMetrics metrics, String metricsId) {
+		this.metrics = metrics;
+		this.metricsId = metricsId;
+	}
+
+	@Override
+	protected Stream<T> fetchFromProvider(int offset, int limit) {
+		// the fetched items are the items of the requested range, which are
+		// removed from the key mapper once they leave the range
+		return fetchItems(offset, limit).peek(uniqueKeyMapper::activate);
+	}
+
+	private Stream<T> fetchItems(int offset, int limit) {
+		if (deferred) {
+			return Stream.empty();
+		}
+		if (metrics == null) {
+			return super.fetchFromProvider(offset, limit);
+		}
+		long start = System.nanoTime();
+		// the stream is consumed here, so that the fetch is actually measured
+		List<T> items;
+		try (Stream<T> stream = super.fetchFromProvider(offset, limit)) {
+			items = stream.collect(Collectors.toList());
+		}
+		metrics.itemsFetched(metricsId, System.nanoTime() - start, items.size());
+		return items.stream();
+	}
+
+	@Override
+	protected int getDataProviderSize() {
+		if (deferred) {
+			return 0;
+		}
+		if (metrics == null) {
+			return super.getDataProviderSize();
+		}
+		long start = System.nanoTime();
+		int size = super.getDataProviderSize();
+		metrics.itemsCounted(metricsId, System.nanoTime() - start, size);
+		return size;
 	}
 }
@@ -0,0 +1,600 @@
+package org.vaadin.gatanaso;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import com.vaadin.flow.data.provider.DataKeyMapper;
+import com.vaadin.flow.function.SerializableFunction;
+import com.vaadin.flow.function.ValueProvider;
+
+/**
+ * Key mapper that derives the keys of items from their unique key data.
+ * <p>
+ * The key of an item is a number computed from the value returned by the
+ * unique key data generator. Non-negative integral unique key data below
+ * 2<sup>62</sup> is used as the key as is, other values are hashed into that
+ * range. An item whose key is already mapped to another item gets a key from
+ * a counter above the hash range instead, so keys are unique. The collisions
+ * are counted and can be checked with {@link #getCollisionCount()}.
+ * <p>
+ * The mapper can be set to retain removed keys, see
+ * {@link #setRetainRemovedKeys(boolean)}. Only the items of the requested
+ * range, which the data communicator activates with {@link #activate(Object)}
+ * and removes once they leave the range, are active. While retaining, keys
+ * of other items, eg. of the selected items, are retained right away, as
+ * nothing removes them. Retained keys are
+ * released on request, once the client no longer holds their items, see
+ * {@link #releaseRetainedKeys(Collection)}. At most
+ * {@link #getMaxRetainedKeys()} keys are retained, the least recently
+ * retained ones are evicted first. The client may still show the items of
+ * evicted keys, so only the id of the item of an evicted key is kept. The
+ * key is only issued again to the item with that id, and {@link #get(String)}
+ * looks the item up by its id, see {@link #setItemLookup(SerializableFunction)}.
+ * The keys set with {@link #setPinnedKeys(Collection)} are neither evicted
+ * nor released. Released keys are forgotten.
+ * <p>
+ * Keys are stored in primitive {@code long} keyed maps and all methods
+ * synchronize on the mapper, so it can be used from concurrent data
+ * generation. Only the keys that are not retained and the pinned keys are
+ * serialized with their items, the other retained keys are serialized as
+ * evicted keys with the ids of their items.
+ *
+ * @param <T>
+ *            the bean type
+ */
+public class MultiselectComboBoxKeyMapper<T> implements DataKeyMapper<T> {
+
+    private static final String NULL_KEY = "null";
+    private static final long HASH_KEY_MASK = (1L << 62) - 1;
+    private static final int DEFAULT_MAX_RETAINED_KEYS = 5000;
+
+    private Function<T, Object> uniqueKeyDataGenerator = (SerializableFunction<T, Object>) Object::hashCode;
+    private ValueProvider<T, Object> identifierGetter = item -> item;
+    // pinned keys, copied so that no state of the caller is read while
+    // holding the lock of this mapper
+    private LongKeyMap<Boolean> pinnedKeys = new LongKeyMap<>();
+
+    // the entries are written by writeObject
+    private transient LongKeyMap<Entry<T>> entriesByKey = new LongKeyMap<>();
+    private transient Map<Object, Entry<T>> entriesById = new HashMap<>();
+    // retained entries by id, least recently retained first
+    private transient LinkedHashMap<Object, Entry<T>> retainedEntries = new LinkedHashMap<>();
+    // ids of the items of evicted keys the client may still hold
+    private transient LongKeyMap<Object> evictedIds = new LongKeyMap<>();
+    // looks up the items of evicted keys, null if they are not looked up
+    private SerializableFunction<Object, T> itemLookup;
+    private long collisionCount;
+    private long nextCollisionKey = HASH_KEY_MASK + 1;
+    private boolean retainRemovedKeys;
+    private int maxRetainedKeys = DEFAULT_MAX_RETAINED_KEYS;
+
+    @Override
+    public synchronized String key(T dataObject) {
+        if (dataObject == null) {
+            return NULL_KEY;
+        }
+        Object id = identifierGetter.apply(dataObject);
+        Entry<T> entry = entriesById.get(id);
+        if (entry == null) {
+            entry = createEntry(id, dataObject);
+            if (retainRemovedKeys) {
+                // not activated, so the key is never removed. It is evicted
+                // by a later removal, once the caller had the chance to pin
+                // the key.
+                entry.retained = true;
+                retainedEntries.put(id, entry);
+            }
+        }
+        return Long.toString(entry.key);
+    }
+
+    /**
+     * Marks the given item as an item of the requested range, which is kept
+     * until it is removed with {@link #remove(Object)}. The key of a retained
+     * item is kept, and the item is replaced with the given instance.
+     * <p>
+     * Should only be called by the data communicator for the items it
+     * fetches, as other items are never removed.
+     *
+     * @param dataObject
+     *            the item to activate
+     */
+    public synchronized void activate(T dataObject) {
+        if (dataObject == null) {
+            return;
+        }
+        Object id = identifierGetter.apply(dataObject);
+        Entry<T> entry = entriesById.get(id);
+        if (entry == null) {
+            createEntry(id, dataObject);
+        } else if (entry.retained) {
+            entry.retained = false;
+            entry.item = dataObject;
+            retainedEntries.remove(id);
+        }
+    }
+
+    @Override
+    public synchronized boolean has(T dataObject) {
+        if (dataObject == null) {
+            return false;
+        }
+        Entry<T> entry = entriesById.get(identifierGetter.apply(dataObject));
+        return entry != null && !entry.retained;
+    }
+
+    /**
+     * Gets the item of the given key. The item of an evicted key is looked
+     * up by its id, see {@link #setItemLookup(SerializableFunction)}, and the
+     * key is retained again. The lock of the mapper is not held while the
+     * item is looked up.
+     *
+     * @param key
+     *            the key of the item
+     * @return the item, or {@code null} if the key is unknown or the item of
+     *         an evicted key can not be found
+     */
+    @Override
+    public T get(String key) {
+        long parsedKey = parseKey(key);
+        if (parsedKey < 0) {
+            return null;
+        }
+        Object id;
+        SerializableFunction<Object, T> lookup;
+        synchronized (this) {
+            Entry<T> entry = entriesByKey.get(parsedKey);
+            if (entry != null) {
+                return entry.item;
+            }
+            id = evictedIds.get(parsedKey);
+            lookup = itemLookup;
+        }
+        if (id == null || lookup == null) {
+            return null;
+        }
+        T item = lookup.apply(id);
+        synchronized (this) {
+            Entry<T> entry = entriesByKey.get(parsedKey);
+            if (entry != null) {
+                // restored in the meantime
+                return entry.item;
+            }
+            if (item == null || !id.equals(evictedIds.get(parsedKey))
+                    || !id.equals(identifierGetter.apply(item))
+                    || entriesById.containsKey(id)) {
+                return null;
+            }
+            evictedIds.remove(parsedKey);
+            entry = new Entry<>(parsedKey, item);
+            entriesByKey.put(parsedKey, entry);
+            entriesById.put(id, entry);
+            if (retainRemovedKeys) {
+                entry.retained = true;
+                retainedEntries.put(id, entry);
+            }
+            return item;
+        }
+    }
+
+    @Override
+    public synchronized void remove(T dataObject) {
+        if (dataObject == null) {
+            return;
+        }
+        Object id = identifierGetter.apply(dataObject);
+        Entry<T> entry = entriesById.get(id);
+        if (entry == null || entry.retained) {
+            return;
+        }
+        if (retainRemovedKeys) {
+            entry.retained = true;
+            retainedEntries.put(id, entry);
+            evictRetainedKeys();
+        } else {
+            removeEntry(id, entry);
+        }
+    }
+
+    @Override
+    public synchronized void removeAll() {
+        entriesByKey.clear();
+        entriesById.clear();
+        retainedEntries.clear();
+        evictedIds.clear();
+    }
+
+    /**
+     * Sets the function that looks up an item by its id. It is used to
+     * resolve the keys that were evicted while the client may still show
+     * their items, eg. after deserialization. The function should return
+     * {@code null} if there is no item with the id.
+     *
+     * @param itemLookup
+     *            the function looking up items by id, or {@code null} to not
+     *            resolve evicted keys
+     */
+    public synchronized void setItemLookup(
+            SerializableFunction<Object, T> itemLookup) {
+        this.itemLookup = itemLookup;
+    }
+
+    /**
+     * Sets whether removed items should stay resolvable by their key until
+     * they are released.
+     * <p>
+     * The data communicator removes the keys of items as soon as they leave
+     * the requested range, while the client may still display them and send
+     * their keys back, eg. when the user selects an item of a page that was
+     * loaded earlier. Retained items are not reported by {@link #has(Object)}.
+     *
+     * @param retainRemovedKeys
+     *            {@code true} to retain removed keys, {@code false} to remove
+     *            them immediately
+     */
+    public synchronized void setRetainRemovedKeys(boolean retainRemovedKeys) {
+        this.retainRemovedKeys = retainRemovedKeys;
+        if (!retainRemovedKeys) {
+            releaseRetainedKeys();
+        }
+    }
+
+    /**
+     * Sets the largest number of removed keys to retain. When more keys are
+     * retained, the least recently retained keys that are not pinned are
+     * evicted.
+     * <p>
+     * The default is 5000, which is more than the connector keeps in its
+     * caches, so that keys are evicted only if the client fails to release
+     * them.
+     *
+     * @param maxRetainedKeys
+     *            the largest number of retained keys, zero or positive
+     */
+    public synchronized void setMaxRetainedKeys(int maxRetainedKeys) {
+        if (maxRetainedKeys < 0) {
+            throw new IllegalArgumentException(
+                    "The maximum number of retained keys should be zero or positive");
+        }
+        this.maxRetainedKeys = maxRetainedKeys;
+        evictRetainedKeys();
+    }
+
+    /**
+     * Gets the largest number of removed keys to retain.
+     *
+     * @return the largest number of retained keys
+     * @see #setMaxRetainedKeys(int)
+     */
+    public synchronized int getMaxRetainedKeys() {
+        return maxRetainedKeys;
+    }
+
+    /**
+     * Sets the keys that the client holds regardless of its caches, eg. the
+     * keys of the selected items. Pinned keys are neither evicted nor
+     * released, so that their items keep their keys. The given keys are
+     * copied, so the pinned keys have to be set again whenever they change.
+     *
+     * @param pinnedKeys
+     *            the pinned keys, not {@code null}
+     */
+    public void setPinnedKeys(Collection<String> pinnedKeys) {
+        Objects.requireNonNull(pinnedKeys, "The pinned keys can not be null");
+        LongKeyMap<Boolean> keys = new LongKeyMap<>();
+        for (String key : pinnedKeys) {
+            long parsedKey = parseKey(key);
+            if (parsedKey >= 0) {
+                keys.put(parsedKey, Boolean.TRUE);
+            }
+        }
+        synchronized (this) {
+            this.pinnedKeys = keys;
+        }
+    }
+
+    /**
+     * Pins and unpins the given keys, keeping the other pinned keys. Unlike
+     * {@link #setPinnedKeys(Collection)}, this takes time in proportion to
+     * the changed keys only.
+     *
+     * @param addedKeys
+     *            the keys to pin, not {@code null}
+     * @param removedKeys
+     *            the keys to unpin, not {@code null}
+     */
+    public synchronized void updatePinnedKeys(Collection<String> addedKeys,
+            Collection<String> removedKeys) {
+        for (String key : removedKeys) {
+            long parsedKey = parseKey(key);
+            if (parsedKey >= 0) {
+                pinnedKeys.remove(parsedKey);
+            }
+        }
+        for (String key : addedKeys) {
+            long parsedKey = parseKey(key);
+            if (parsedKey >= 0) {
+                pinnedKeys.put(parsedKey, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Removes the keys of all items that were removed while retaining removed
+     * keys, except for pinned keys. Should be called once the client no
+     * longer holds the items, eg. when its cache is cleared.
+     */
+    public synchronized void releaseRetainedKeys() {
+        Iterator<Map.Entry<Object, Entry<T>>> iterator = retainedEntries
+                .entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, Entry<T>> retained = iterator.next();
+            if (!isPinned(retained.getValue())) {
+                iterator.remove();
+                entriesById.remove(retained.getKey());
+                entriesByKey.remove(retained.getValue().key);
+            }
+        }
+        evictedIds.clear();
+    }
+
+    /**
+     * Removes the given keys if they are retained or evicted, except for
+     * pinned keys. Should be called once the client no longer holds the items
+     * of the keys. Keys of items that have been activated again in the
+     * meantime are kept.
+     *
+     * @param keys
+     *            the keys to release
+     */
+    public synchronized void releaseRetainedKeys(Collection<String> keys) {
+        for (String key : keys) {
+            long parsedKey = parseKey(key);
+            if (parsedKey < 0) {
+                continue;
+            }
+            Entry<T> entry = entriesByKey.get(parsedKey);
+            if (entry == null) {
+                evictedIds.remove(parsedKey);
+            } else if (entry.retained && !isPinned(entry)) {
+                Object id = identifierGetter.apply(entry.item);
+                retainedEntries.remove(id);
+                removeEntry(id, entry);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of removed keys that are currently retained.
+     *
+     * @return the number of retained keys
+     */
+    public synchronized int getRetainedKeyCount() {
+        return retainedEntries.size();
+    }
+
+    @Override
+    public synchronized void refresh(T dataObject) {
+        if (dataObject == null) {
+            return;
+        }
+        Entry<T> entry = entriesById.get(identifierGetter.apply(dataObject));
+        if (entry != null) {
+            entry.item = dataObject;
+        }
+    }
+
+    @Override
+    public synchronized void setIdentifierGetter(
+            ValueProvider<T, Object> identifierGetter) {
+        if (this.identifierGetter != identifierGetter) {
+            removeAll();
+            this.identifierGetter = identifierGetter;
+        }
+    }
+
+    /**
+     * Sets the given {@link Function} as unique key data generator.
+     * The default implementation is {@link Object#hashCode()}.
+     * <p>
+     * Changing the generator clears all mapped keys.
+     *
+     * @param uniqueKeyDataGenerator {@link Function} to generate unique key data
+     */
+    public synchronized void setUniqueKeyDataGenerator(
+            Function<T, Object> uniqueKeyDataGenerator) {
+        this.uniqueKeyDataGenerator = uniqueKeyDataGenerator;
+        removeAll();
+    }
+
+    /**
+     * Gets the number of items whose key derived from the unique key data was
+     * already mapped to another item. A growing count means that the unique
+     * key data generator is not unique for the items.
+     *
+     * @return the number of key collisions
+     */
+    public synchronized long getCollisionCount() {
+        return collisionCount;
+    }
+
+    /**
+     * Evicts the least recently retained keys that are not pinned while more
+     * keys are retained than allowed. Pinned keys are moved to the end, so
+     * they are not checked again by the next eviction.
+     */
+    private void evictRetainedKeys() {
+        int unchecked = retainedEntries.size();
+        while (retainedEntries.size() > maxRetainedKeys && unchecked-- > 0) {
+            Iterator<Map.Entry<Object, Entry<T>>> iterator = retainedEntries
+                    .entrySet().iterator();
+            Map.Entry<Object, Entry<T>> eldest = iterator.next();
+            iterator.remove();
+            if (isPinned(eldest.getValue())) {
+                retainedEntries.put(eldest.getKey(), eldest.getValue());
+            } else {
+                removeEntry(eldest.getKey(), eldest.getValue());
+                evictedIds.put(eldest.getValue().key, eldest.getKey());
+            }
+        }
+    }
+
+    private Entry<T> createEntry(Object id, T dataObject) {
+        long key = createKey(dataObject);
+        if (entriesByKey.containsKey(key)) {
+            // the key is mapped to another item
+            collisionCount++;
+            key = nextCollisionKey++;
+        } else if (evictedIds.containsKey(key)) {
+            if (evictedIds.get(key).equals(id)) {
+                // the key was issued to this item
+                evictedIds.remove(key);
+            } else {
+                // the client may still show another item with the key
+                key = nextCollisionKey++;
+            }
+        }
+        Entry<T> entry = new Entry<>(key, dataObject);
+        entriesByKey.put(key, entry);
+        entriesById.put(id, entry);
+        return entry;
+    }
+
+    private boolean isPinned(Entry<T> entry) {
+        return pinnedKeys.containsKey(entry.key);
+    }
+
+    private void removeEntry(Object id, Entry<T> entry) {
+        entriesById.remove(id);
+        entriesByKey.remove(entry.key);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        // the items of retained keys are looked up again if needed, their
+        // keys are kept as evicted keys with the ids of the items, as the
+        // client may still hold them. Pinned keys are kept with their items,
+        // which are serialized with the selection anyway.
+        List<Map.Entry<Object, Entry<T>>> writtenEntries = new ArrayList<>();
+        List<Map.Entry<Object, Entry<T>>> evictedEntries = new ArrayList<>();
+        for (Map.Entry<Object, Entry<T>> entry : entriesById.entrySet()) {
+            if (!entry.getValue().retained || isPinned(entry.getValue())) {
+                writtenEntries.add(entry);
+            } else {
+                evictedEntries.add(entry);
+            }
+        }
+        out.writeInt(writtenEntries.size());
+        for (Map.Entry<Object, Entry<T>> entry : writtenEntries) {
+            out.writeLong(entry.getValue().key);
+            out.writeBoolean(entry.getValue().retained);
+            out.writeObject(entry.getValue().item);
+        }
+        long[] keys = Arrays.copyOf(evictedIds.toKeyArray(),
+                evictedIds.size() + evictedEntries.size());
+        Object[] ids = new Object[keys.length];
+        for (int i = 0; i < evictedIds.size(); i++) {
+            ids[i] = evictedIds.get(keys[i]);
+        }
+        int index = evictedIds.size();
+        for (Map.Entry<Object, Entry<T>> entry : evictedEntries) {
+            keys[index] = entry.getValue().key;
+            ids[index++] = entry.getKey();
+        }
+        out.writeObject(keys);
+        out.writeObject(ids);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        entriesByKey = new LongKeyMap<>();
+        entriesById = new HashMap<>();
+        retainedEntries = new LinkedHashMap<>();
+        evictedIds = new LongKeyMap<>();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            long key = in.readLong();
+            boolean retained = in.readBoolean();
+            Entry<T> entry = new Entry<>(key, (T) in.readObject());
+            Object id = identifierGetter.apply(entry.item);
+            entriesByKey.put(entry.key, entry);
+            entriesById.put(id, entry);
+            if (retained) {
+                entry.retained = true;
+                retainedEntries.put(id, entry);
+            }
+        }
+        long[] keys = (long[]) in.readObject();
+        Object[] ids = (Object[]) in.readObject();
+        for (int i = 0; i < keys.length; i++) {
+            evictedIds.put(keys[i], ids[i]);
+        }
+    }
+
+    /**
+     * Parses a key created by this mapper.
+     *
+     * @return the key, or {@code -1} if it was not created by this mapper
+     */
+    private static long parseKey(String key) {
+        if (key == null || key.isEmpty() || NULL_KEY.equals(key)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            // not a key created by this mapper
+            return -1;
+        }
+    }
+
+    private long createKey(T dataObject) {
+        Object keyData = uniqueKeyDataGenerator.apply(dataObject);
+        if (keyData instanceof Integer || keyData instanceof Long
+                || keyData instanceof Short || keyData instanceof Byte) {
+            long key = ((Number) keyData).longValue();
+            if (key >= 0 && key <= HASH_KEY_MASK) {
+                return key;
+            }
+        }
+        return hash(String.valueOf(keyData)) & HASH_KEY_MASK;
+    }
+
+    /**
+     * 64-bit FNV-1a hash, which collides far less than
+     * {@link String#hashCode()}.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static final class Entry<T> {
+        private final long key;
+        private T item;
+        private boolean retained;
+
+        private Entry(long key, T item) {
+            this.key = key;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.vaadin.gatanaso;
+
+import java.io.Serializable;
+
+/**
+ * Listener for performance metrics of a {@link MultiselectComboBox}, set with
+ * {@link MultiselectComboBox#setMetrics(MultiselectComboBoxMetrics, String)}.
+ * <p>
+ * Every method is called with the component id given when setting the
+ * listener, and does nothing by default, so implementations only need to
+ * override the methods for the metrics they record. The methods are called
+ * while the session is locked, so they should return quickly.
+ *
+ * @see MicrometerMultiselectComboBoxMetrics
+ */
+public interface MultiselectComboBoxMetrics extends Serializable {
+
+    /**
+     * Called after items have been fetched from the data provider.
+     *
+     * @param componentId
+     *            the id of the component
+     * @param durationNanos
+     *            the time the fetch took, in nanoseconds
+     * @param itemCount
+     *            the number of fetched items
+     */
+    default void itemsFetched(String componentId, long durationNanos,
+            int itemCount) {
+    }
+
+    /**
+     * Called after the items of the data provider have been counted.
+     *
+     * @param componentId
+     *            the id of the component
+     * @param durationNanos
+     *            the time the count took, in nanoseconds
+     * @param size
+     *            the number of items
+     */
+    default void itemsCounted(String componentId, long durationNanos,
+            int size) {
+    }
+
+    /**
+     * Called when an update with items is sent to the client.
+     *
+     * @param componentId
+     *            the id of the component
+     * @param itemCount
+     *            the number of items in the update
+     * @param bytes
+     *            the size of the items in the update as UTF-8 encoded JSON,
+     *            in bytes
+     */
+    default void updateSent(String componentId, int itemCount, int bytes) {
+    }
+
+    /**
+     * Called when the client requests items with a changed filter.
+     *
+     * @param componentId
+     *            the id of the component
+     */
+    default void filterRequested(String componentId) {
+    }
+
+    /**
+     * Called when the value of the component changes.
+     *
+     * @param componentId
+     *            the id of the component
+     * @param selectionSize
+     *            the number of selected items
+     */
+    default void selectionChanged(String componentId, int selectionSize) {
+    }
+
+    /**
+     * Called when the client confirms that it has applied an update.
+     *
+     * @param componentId
+     *            the id of the component
+     * @param latencyNanos
+     *            the time from sending the update to its confirmation, in
+     *            nanoseconds
+     */
+    default void updateConfirmed(String componentId, long latencyNanos) {
+    }
+}
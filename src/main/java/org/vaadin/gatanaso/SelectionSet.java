@@ -0,0 +1,368 @@
+package org.vaadin.gatanaso;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * An immutable hash set that is changed by deriving a new set from it.
+ * <p>
+ * The items are kept in a hash array mapped trie, so a derived set shares
+ * all the nodes with this set except the ones on the paths to the added and
+ * removed items. Deriving a set with a few items changed therefore takes the
+ * same time regardless of the size of the set, and each item is hashed once
+ * per lookup. Items can not be {@code null}.
+ *
+ * @param <T>
+ *            the item type
+ */
+final class SelectionSet<T> extends AbstractSet<T> implements Serializable {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // items whose hashes are equal are kept in a node below the last level
+    private static final int MAX_SHIFT = 30;
+    private static final int MAX_DEPTH = MAX_SHIFT / BITS + 2;
+
+    private static final SelectionSet<?> EMPTY = new SelectionSet<>(null, 0);
+
+    // null if the set is empty, the nodes are written as the plain items
+    private transient Node root;
+    private transient int size;
+
+    private SelectionSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Gets the empty set.
+     *
+     * @param <T>
+     *            the item type
+     * @return the empty set
+     */
+    @SuppressWarnings("unchecked")
+    static <T> SelectionSet<T> empty() {
+        return (SelectionSet<T>) EMPTY;
+    }
+
+    /**
+     * Gets a set of the given items, which are copied unless they already
+     * are a selection set.
+     *
+     * @param items
+     *            the items, or {@code null} for an empty set
+     * @param <T>
+     *            the item type
+     * @return the set of the items
+     */
+    @SuppressWarnings("unchecked")
+    static <T> SelectionSet<T> of(Collection<? extends T> items) {
+        if (items instanceof SelectionSet) {
+            return (SelectionSet<T>) items;
+        }
+        if (items == null) {
+            return empty();
+        }
+        return SelectionSet.<T> empty().with(items, Collections.emptySet());
+    }
+
+    /**
+     * Derives the set with the given items added and removed. Removing wins
+     * over adding.
+     *
+     * @param added
+     *            the items to add, not {@code null}
+     * @param removed
+     *            the items to remove, not {@code null}
+     * @return the derived set, or this set if nothing changes
+     */
+    SelectionSet<T> with(Collection<? extends T> added,
+            Collection<?> removed) {
+        Node node = root;
+        int count = size;
+        for (Object item : removed) {
+            Node changed = remove(node, item, hash(item), 0);
+            if (changed != node) {
+                node = changed;
+                count--;
+            }
+        }
+        for (T item : added) {
+            if (removed.isEmpty() || !removed.contains(item)) {
+                Node changed = add(node, item, hash(item), 0);
+                if (changed != node) {
+                    node = changed;
+                    count++;
+                }
+            }
+        }
+        if (node == root) {
+            return this;
+        }
+        return node == null ? empty() : new SelectionSet<>(node, count);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null || root == null) {
+            return false;
+        }
+        int hash = hash(o);
+        Node node = root;
+        for (int shift = 0; shift <= MAX_SHIFT; shift += BITS) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return false;
+            }
+            Object slot = node.slots[index(node.bitmap, bit)];
+            if (!(slot instanceof Node)) {
+                return o.equals(slot);
+            }
+            node = (Node) slot;
+        }
+        for (Object item : node.slots) {
+            if (o.equals(item)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private final Object[][] path = new Object[MAX_DEPTH][];
+            private final int[] indexes = new int[MAX_DEPTH];
+            private int depth = -1;
+            private Object next;
+
+            {
+                if (root != null) {
+                    depth = 0;
+                    path[0] = root.slots;
+                    next = advance();
+                }
+            }
+
+            private Object advance() {
+                while (depth >= 0) {
+                    if (indexes[depth] == path[depth].length) {
+                        depth--;
+                        continue;
+                    }
+                    Object slot = path[depth][indexes[depth]++];
+                    if (!(slot instanceof Node)) {
+                        return slot;
+                    }
+                    depth++;
+                    path[depth] = ((Node) slot).slots;
+                    indexes[depth] = 0;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Object item = next;
+                next = advance();
+                return (T) item;
+            }
+        };
+    }
+
+    private static int hash(Object item) {
+        int hash = Objects.requireNonNull(item, "Item can not be null")
+                .hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    /**
+     * Adds the item to the subtree of the node.
+     *
+     * @return the changed node, or the given node if it has the item
+     */
+    private static Node add(Node node, Object item, int hash, int shift) {
+        if (node == null) {
+            return new Node(bit(hash, shift), new Object[] { item });
+        }
+        if (shift > MAX_SHIFT) {
+            for (Object slot : node.slots) {
+                if (item.equals(slot)) {
+                    return node;
+                }
+            }
+            return new Node(0, insert(node.slots, node.slots.length, item));
+        }
+        int bit = bit(hash, shift);
+        int index = index(node.bitmap, bit);
+        if ((node.bitmap & bit) == 0) {
+            return new Node(node.bitmap | bit,
+                    insert(node.slots, index, item));
+        }
+        Object slot = node.slots[index];
+        Object changed;
+        if (slot instanceof Node) {
+            changed = add((Node) slot, item, hash, shift + BITS);
+            if (changed == slot) {
+                return node;
+            }
+        } else if (item.equals(slot)) {
+            return node;
+        } else {
+            changed = pair(slot, hash(slot), item, hash, shift + BITS);
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = changed;
+        return new Node(node.bitmap, slots);
+    }
+
+    private static Node pair(Object item1, int hash1, Object item2, int hash2,
+            int shift) {
+        if (shift > MAX_SHIFT) {
+            return new Node(0, new Object[] { item1, item2 });
+        }
+        int bit1 = bit(hash1, shift);
+        int bit2 = bit(hash2, shift);
+        if (bit1 == bit2) {
+            return new Node(bit1, new Object[] {
+                    pair(item1, hash1, item2, hash2, shift + BITS) });
+        }
+        // the bit of the last slot is negative
+        return new Node(bit1 | bit2, Integer.compareUnsigned(bit1, bit2) < 0
+                ? new Object[] { item1, item2 }
+                : new Object[] { item2, item1 });
+    }
+
+    /**
+     * Removes the item from the subtree of the node.
+     *
+     * @return the changed node, {@code null} if it became empty, or the given
+     *         node if it does not have the item
+     */
+    private static Node remove(Node node, Object item, int hash, int shift) {
+        if (node == null) {
+            return null;
+        }
+        if (shift > MAX_SHIFT) {
+            for (int i = 0; i < node.slots.length; i++) {
+                if (item.equals(node.slots[i])) {
+                    return node.slots.length == 1 ? null
+                            : new Node(0, delete(node.slots, i));
+                }
+            }
+            return node;
+        }
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = index(node.bitmap, bit);
+        Object slot = node.slots[index];
+        if (slot instanceof Node) {
+            Node changed = remove((Node) slot, item, hash, shift + BITS);
+            if (changed == slot) {
+                return node;
+            }
+            if (changed != null) {
+                Object[] slots = node.slots.clone();
+                // a single item is kept in place of its node
+                slots[index] = changed.slots.length == 1
+                        && !(changed.slots[0] instanceof Node)
+                                ? changed.slots[0]
+                                : changed;
+                return new Node(node.bitmap, slots);
+            }
+        } else if (!item.equals(slot)) {
+            return node;
+        }
+        if (node.bitmap == bit) {
+            return null;
+        }
+        return new Node(node.bitmap & ~bit, delete(node.slots, index));
+    }
+
+    private static Object[] insert(Object[] slots, int index, Object slot) {
+        Object[] inserted = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, inserted, 0, index);
+        inserted[index] = slot;
+        System.arraycopy(slots, index, inserted, index + 1,
+                slots.length - index);
+        return inserted;
+    }
+
+    private static Object[] delete(Object[] slots, int index) {
+        Object[] deleted = new Object[slots.length - 1];
+        System.arraycopy(slots, 0, deleted, 0, index);
+        System.arraycopy(slots, index + 1, deleted, index,
+                slots.length - index - 1);
+        return deleted;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (T item : this) {
+            out.writeObject(item);
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Object item = in.readObject();
+            Node changed = add(root, item, hash(item), 0);
+            if (changed != root) {
+                root = changed;
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Node of the trie. Its slots hold the items and child nodes of the set
+     * bits of its bitmap, in the order of the bits. Below the last level,
+     * the bitmap is not used and the slots hold items with equal hashes.
+     */
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+}
@@ -16,10 +16,89 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
     let cache = {};
     let lastFilter = '';
 
+    // Pages of the current filter already provided to the combo box, and the
+    // pages of recently used filters, least recently used first, so that
+    // backtracking to a filter needs no round trip. The filter caches are
+    // dropped on reset, on data updates and when the server generation
+    // changes. The server keeps the keys of the cached items until the pages
+    // are dropped, see _releaseDroppedPages, so the caches are kept small.
+    // The provided pages farthest from the viewed page are dropped from the
+    // combo box as well, which requests them again when they are viewed.
+    const MAX_CACHED_FILTER_ITEMS = 1000;
+    const MAX_PROVIDED_ITEMS = 1000;
+    let providedPages = {};
+    let filterCaches = [];
+    let lastSize = undefined;
+    let lastGeneration = undefined;
+
+    // Index of each loaded item in the filteredItems of the combo box by key,
+    // recorded when items are passed to the combo box and verified on use
+    let loadedIndexes = {};
+
+    // A placeholder the combo box uses for items that are not loaded, taken
+    // from its filtered items, as its class is not available to the connector
+    let placeholder = null;
+
+    // Pages requested ahead of the viewed page that have not arrived yet,
+    // and the page the combo box requested last
+    let prefetchRequested = {};
+    let lastRequestedPage = 0;
+
+    // Average round trip time of the filter requests, used to tune the
+    // filter debounce when adaptive filter debounce is enabled
+    let averageRoundTripTime = null;
+    let filterRequestTime = null;
+
+    // Keys of the selected items as known by the server, used to send only
+    // the added and removed keys when the selection changes. While null, the
+    // selection is unknown to the server and has to be sent in full.
+    let selectedKeys = null;
+    // The selected items the keys were taken from, compared with the new
+    // selected items to find the item changed by a single click
+    let lastSelectedItems = [];
+
+    // Compact mode state to restore once the selection summary is no longer
+    // shown, null while no summary is shown
+    let summaryRestoreState = null;
+
+    multiselectComboBox.addEventListener('selected-items-changed', function () {
+      const selectedItems = multiselectComboBox.selectedItems || [];
+
+      if (selectedKeys === null) {
+        selectedKeys = _keysOf(selectedItems);
+        lastSelectedItems = selectedItems;
+        multiselectComboBox.$server.setSelectedItems(selectedItems);
+        return;
+      }
+
+      const changes = _selectionChanges(lastSelectedItems, selectedItems);
+      const addedKeys = changes.addedKeys;
+      const removedKeys = changes.removedKeys;
+      for (let i = 0; i < addedKeys.length; i++) {
+        selectedKeys[addedKeys[i]] = true;
+      }
+      for (let i = 0; i < removedKeys.length; i++) {
+        delete selectedKeys[removedKeys[i]];
+      }
+      lastSelectedItems = selectedItems;
+
+      if (addedKeys.length > 0 || removedKeys.length > 0) {
+        multiselectComboBox.$server.updateSelectedItems(addedKeys, removedKeys);
+      }
+    });
+
     multiselectComboBox.$connector.initDataConnector = function() {
       if (_hasDataProvider(multiselectComboBox)) {
         return;
       }
+      // With lazy activation the server reports no items until the drop-down
+      // is opened for the first time, typing a filter opens it as well
+      multiselectComboBox.$.comboBox.addEventListener('opened-changed', function (e) {
+        if (e.detail.value && multiselectComboBox._lazyActivation) {
+          multiselectComboBox._lazyActivation = false;
+          multiselectComboBox.$server.activateData();
+        }
+      });
       multiselectComboBox.$.comboBox.dataProvider = function (params, callback) {
         if (params.pageSize != multiselectComboBox.$.comboBox.pageSize
             && multiselectComboBox.pageSize != multiselectComboBox.$.comboBox.pageSize) {
@@ -31,7 +110,7 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
           // For clientside filter we first make sure we have all data which we also
           // filter based on comboBox.filter. While later we only filter client side data.
           if (cache[0]) {
-            performClientSideFilter(cache[0], callback);
+            performClientSideFilter(params.page, callback);
             return;
           } else {
             // If the client side filter is enabled then we need to first get all data
@@ -39,30 +118,37 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
             // inputs another filter, eg. continues to type, the local cache will be only
             // that which was received for the first filter, which may not be the whole
             // data from server (keep in mind that the client side filter is enabled only
-            // when the items count does not exceed one page).
+            // when the items count does not exceed the client side filter threshold,
+            // so all of it is preloaded at once, see requestOutstandingPages).
             params.filter = "";
           }
         }
 
         const filterChanged = params.filter !== lastFilter;
         if (filterChanged) {
-          pageCallbacks = {};
-          cache = {};
-          lastFilter = params.filter;
+          _switchFilter(params.filter);
         }
+        lastRequestedPage = params.page;
 
         if (cache[params.page]) {
-          // This may happen after skipping pages by scrolling fast
+          // This may happen after skipping pages by scrolling fast, when
+          // the page was prefetched or when backtracking to a recent filter
+          if (filterChanged && this._debouncer) {
+            // the request for the previous filter is no longer needed
+            this._debouncer.cancel();
+          }
           commitPage(params.page, callback);
+          prefetchAhead(params.page, params.pageSize, params.filter);
         } else {
-          const upperLimit = params.pageSize * (params.page + 1);
+          pageCallbacks[params.page] = callback;
 
           if (filterChanged) {
             this._debouncer = Debouncer.debounce(
                 this._debouncer,
-                timeOut.after(500),
+                timeOut.after(_getFilterDebounce()),
                 () => {
-                  multiselectComboBox.$server.setRequestedRange(0, upperLimit, params.filter);
+                  filterRequestTime = Date.now();
+                  requestOutstandingPages(params.pageSize, params.filter);
                   if (params.filter === '') {
                     // Fixes the case when the filter changes
                     // from '' to something else and back to ''
@@ -72,10 +158,8 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
                   }
                 });
           } else {
-            multiselectComboBox.$server.setRequestedRange(0, upperLimit, params.filter);
+            requestOutstandingPages(params.pageSize, params.filter);
           }
-
-          pageCallbacks[params.page] = callback;
         }
       };
     };
@@ -90,6 +174,14 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
         return;
       }
 
+      // items in the compact encoding start with the array of field names
+      // and are kept encoded until their page is used
+      let fields = null;
+      if (items.length > 0 && Array.isArray(items[0])) {
+        fields = items[0];
+        items = items.slice(1);
+      }
+
       if (index % multiselectComboBox.$.comboBox.pageSize != 0) {
         throw 'Got new data to index ' + index + ' which is not aligned with the page size of ' + multiselectComboBox.$.comboBox.pageSize;
       }
@@ -108,22 +200,57 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
         let page = firstPageToSet + i;
         let slice = items.slice(i * multiselectComboBox.$.comboBox.pageSize, (i + 1) * multiselectComboBox.$.comboBox.pageSize);
 
-        cache[page] = slice;
+        cache[page] = fields ? {fields: fields, rows: slice} : slice;
+        delete prefetchRequested[page];
+      }
+
+      if (!multiselectComboBox._clientSideFilter) {
+        evictPrefetchedPages();
       }
     };
 
     multiselectComboBox.$connector.updateData = function (items) {
+      const filteredItems = multiselectComboBox.$.comboBox.filteredItems;
+      if (!filteredItems || items.length === 0) {
+        return;
+      }
+
+      let indexesRebuilt = false;
+      const splices = [];
       // IE11 doesn't work with the transpiled version of the forEach.
       for (let i = 0; i < items.length; i++) {
         let item = items[i];
+        let index = _indexOf(filteredItems, item.key);
+        if (index === undefined && !indexesRebuilt) {
+          // the recorded index is outdated, eg. after the combo box replaced
+          // its items, so index all the loaded items once
+          _rebuildIndexes(filteredItems);
+          indexesRebuilt = true;
+          index = _indexOf(filteredItems, item.key);
+        }
 
-        for (let j = 0; j < multiselectComboBox.$.comboBox.filteredItems.length; j++) {
-          if (multiselectComboBox.$.comboBox.filteredItems[j].key === item.key) {
-              multiselectComboBox.$.comboBox.set('filteredItems.' + j, item);
-            break;
-          }
+        if (index !== undefined) {
+          // the changed slot is updated in place, so that the combo box
+          // re-renders only the changed items instead of all the loaded items
+          splices.push({index: index, removed: [filteredItems[index]], addedCount: 1, object: filteredItems, type: 'splice'});
+          filteredItems[index] = item;
+          _updateProvidedItem(index, item);
+        }
+      }
+      if (splices.length > 0) {
+        // the combo box is notified once for all the changed items
+        multiselectComboBox.$.comboBox.notifySplices('filteredItems', splices);
+      }
+
+      // the pages kept for other filters may contain the old items
+      const droppedPages = [];
+      for (let i = 0; i < filterCaches.length; i++) {
+        for (let page in filterCaches[i].pages) {
+          droppedPages.push(filterCaches[i].pages[page]);
         }
       }
+      filterCaches = [];
+      _releaseDroppedPages(droppedPages);
     };
 
     multiselectComboBox.$connector.updateSize = function (newSize) {
@@ -145,6 +272,11 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
     multiselectComboBox.$connector.reset = function () {
       pageCallbacks = {};
       cache = {};
+      providedPages = {};
+      filterCaches = [];
+      lastSize = undefined;
+      loadedIndexes = {};
+      prefetchRequested = {};
       multiselectComboBox.$.comboBox.clearCache();
     };
 
@@ -154,6 +286,14 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
         return;
       }
 
+      if (filterRequestTime !== null) {
+        const roundTripTime = Date.now() - filterRequestTime;
+        filterRequestTime = null;
+        averageRoundTripTime = averageRoundTripTime === null
+            ? roundTripTime
+            : 0.7 * averageRoundTripTime + 0.3 * roundTripTime;
+      }
+
       // We're done applying changes from this batch,
       // resolve outstanding callbacks
       let outstandingRequests = Object.getOwnPropertyNames(pageCallbacks);
@@ -168,45 +308,538 @@ window.Vaadin.Flow.multiselectComboBoxConnector = {
         }
       }
 
+      // pages of this batch that did not arrive are past the end of the data
+      // or were superseded, so they can be requested again
+      prefetchRequested = {};
+
       // inform the server that we are done
       multiselectComboBox.$server.confirmUpdate(id);
     };
 
+    // Applies all the changes of one server side update, ie. the new size,
+    // the page slices as [index, items] pairs and the confirm of the update.
+    multiselectComboBox.$connector.update = function (size, slices, filter, id, generation) {
+      if (generation !== lastGeneration) {
+        lastGeneration = generation;
+        const droppedPages = _cachedPages();
+        filterCaches = [];
+        _releaseDroppedPages(droppedPages);
+      }
+      if (filter == lastFilter) {
+        lastSize = size;
+      }
+      multiselectComboBox.$connector.updateSize(size);
+      for (let i = 0; i < slices.length; i++) {
+        multiselectComboBox.$connector.set(slices[i][0], slices[i][1], filter);
+      }
+      multiselectComboBox.$connector.confirm(id, filter);
+    };
+
+    // Shows a summary of a selection of all items matching a filter, which is
+    // too large to send, in compact mode instead of the selected items
+    multiselectComboBox.$connector.setSelectionSummary = function (summary) {
+      if (summaryRestoreState === null) {
+        summaryRestoreState = {
+          compactMode: multiselectComboBox.compactMode,
+          compactModeLabelGenerator: multiselectComboBox.compactModeLabelGenerator
+        };
+      }
+      multiselectComboBox.compactModeLabelGenerator = () => summary;
+      multiselectComboBox.compactMode = true;
+      selectedKeys = {};
+      lastSelectedItems = [];
+      multiselectComboBox.selectedItems = lastSelectedItems;
+    };
+
+    const _clearSelectionSummary = function () {
+      if (summaryRestoreState !== null) {
+        multiselectComboBox.compactModeLabelGenerator = summaryRestoreState.compactModeLabelGenerator;
+        multiselectComboBox.compactMode = summaryRestoreState.compactMode;
+        summaryRestoreState = null;
+      }
+    };
+
+    multiselectComboBox.$connector.setSelectedItems = function (items) {
+      _clearSelectionSummary();
+      // the keys are updated first, so that the change event fired by
+      // the web component is not sent back to the server
+      selectedKeys = _keysOf(items);
+      lastSelectedItems = items;
+      multiselectComboBox.selectedItems = items;
+    };
+
+    multiselectComboBox.$connector.updateSelectedItems = function (addedItems, removedKeys) {
+      _clearSelectionSummary();
+      if (selectedKeys === null) {
+        selectedKeys = _keysOf(multiselectComboBox.selectedItems || []);
+      }
+      const removed = {};
+      for (let i = 0; i < removedKeys.length; i++) {
+        removed[removedKeys[i]] = true;
+        delete selectedKeys[removedKeys[i]];
+      }
+
+      // the web component expects a new array, only the keys are updated
+      // by the change
+      const selectedItems = multiselectComboBox.selectedItems || [];
+      const items = removedKeys.length > 0
+          ? selectedItems.filter(item => !removed[item.key]) : selectedItems.slice();
+      for (let i = 0; i < addedItems.length; i++) {
+        items.push(addedItems[i]);
+        selectedKeys[addedItems[i].key] = true;
+      }
+
+      lastSelectedItems = items;
+      multiselectComboBox.selectedItems = items;
+    };
+
     multiselectComboBox.$connector.setCompactModeLabel = function(compactModeLabel) {
       multiselectComboBox.compactModeLabelGenerator = () => compactModeLabel;
     };
 
+    // Requests only the window of pages that still have a pending callback,
+    // instead of everything from the first page, so that scrolling deep into
+    // the list costs one page of backend work per step.
+    const requestOutstandingPages = function (pageSize, filter) {
+      const pages = Object.getOwnPropertyNames(pageCallbacks).map(page => parseInt(page));
+      if (pages.length === 0) {
+        return;
+      }
+      if (multiselectComboBox._clientSideFilter) {
+        // preload every page up to the client side filter threshold
+        const threshold = multiselectComboBox._clientSideFilterThreshold !== undefined
+            ? multiselectComboBox._clientSideFilterThreshold : pageSize;
+        multiselectComboBox.$server.setRequestedRange(0,
+            Math.max(1, Math.ceil(threshold / pageSize)) * pageSize, filter);
+        return;
+      }
+      const firstPage = Math.min.apply(null, pages);
+      const lastPage = Math.max.apply(null, pages);
+      const prefetchPageCount = countPrefetchablePages(lastPage + 1, lastPage, pageSize);
+      multiselectComboBox.$server.setRequestedRange(firstPage * pageSize,
+          (lastPage - firstPage + 1 + prefetchPageCount) * pageSize, filter);
+    };
+
+    // Requests the pages following the given page that are neither cached
+    // nor requested yet, up to the configured number of prefetched pages.
+    const prefetchAhead = function (page, pageSize, filter) {
+      if (multiselectComboBox._clientSideFilter || Object.getOwnPropertyNames(pageCallbacks).length > 0) {
+        // pending pages are requested together with the pages ahead of them
+        return;
+      }
+      const prefetchPages = multiselectComboBox._prefetchPages || 0;
+      let firstPage = page + 1;
+      while (firstPage <= page + prefetchPages && (cache[firstPage] || prefetchRequested[firstPage])) {
+        firstPage++;
+      }
+      const pageCount = countPrefetchablePages(firstPage, page, pageSize);
+      if (pageCount > 0) {
+        multiselectComboBox.$server.setRequestedRange(firstPage * pageSize, pageCount * pageSize, filter);
+      }
+    };
+
+    // Counts the consecutive pages from the first page on to prefetch for the
+    // viewed page, staying within the known size and the cache budget, and
+    // marks them as requested.
+    const countPrefetchablePages = function (firstPage, viewedPage, pageSize) {
+      if (multiselectComboBox._clientSideFilter) {
+        return 0;
+      }
+      const prefetchPages = multiselectComboBox._prefetchPages || 0;
+      const maxItems = multiselectComboBox._maxPrefetchedItems !== undefined
+          ? multiselectComboBox._maxPrefetchedItems : 500;
+      const size = multiselectComboBox.$.comboBox.size;
+      let budget = maxItems - _countCachedItems();
+
+      let pageCount = 0;
+      for (let page = firstPage; page <= viewedPage + prefetchPages; page++) {
+        if (cache[page] || prefetchRequested[page] || pageCallbacks[page]
+            || (size !== undefined && page * pageSize >= size) || budget < pageSize) {
+          break;
+        }
+        prefetchRequested[page] = true;
+        budget -= pageSize;
+        pageCount++;
+      }
+      return pageCount;
+    };
+
+    // Drops the cached pages farthest from the last requested page while the
+    // cache holds more items than the budget allows.
+    const evictPrefetchedPages = function () {
+      const maxItems = multiselectComboBox._maxPrefetchedItems !== undefined
+          ? multiselectComboBox._maxPrefetchedItems : 500;
+      let count = _countCachedItems();
+      const evictedPages = [];
+      while (count > maxItems) {
+        const pages = Object.getOwnPropertyNames(cache)
+            .map(page => parseInt(page))
+            .filter(page => !pageCallbacks[page]);
+        if (pages.length === 0) {
+          break;
+        }
+        const farthestPage = pages.reduce((farthest, page) =>
+            Math.abs(page - lastRequestedPage) > Math.abs(farthest - lastRequestedPage) ? page : farthest);
+        count -= _countItems(cache[farthestPage]);
+        evictedPages.push(cache[farthestPage]);
+        delete cache[farthestPage];
+      }
+      _releaseDroppedPages(evictedPages);
+    };
+
+    // Drops the provided pages farthest from the given page from the combo
+    // box while more items than allowed have been provided for the filter.
+    const evictProvidedPages = function (viewedPage) {
+      const filteredItems = multiselectComboBox.$.comboBox.filteredItems;
+      let count = 0;
+      for (let page in providedPages) {
+        count += _countItems(providedPages[page]);
+      }
+      if (count <= MAX_PROVIDED_ITEMS || !filteredItems || !_getPlaceholder(filteredItems)) {
+        return;
+      }
+      const pageSize = multiselectComboBox.$.comboBox.pageSize;
+      const evictedPages = [];
+      const splices = [];
+      while (count > MAX_PROVIDED_ITEMS) {
+        const pages = Object.getOwnPropertyNames(providedPages)
+            .map(page => parseInt(page))
+            .filter(page => page !== viewedPage);
+        if (pages.length === 0) {
+          break;
+        }
+        const farthestPage = pages.reduce((farthest, page) =>
+            Math.abs(page - viewedPage) > Math.abs(farthest - viewedPage) ? page : farthest);
+        const items = providedPages[farthestPage];
+        // the slots are only replaced while they still hold the page
+        for (let i = 0; i < items.length; i++) {
+          const index = farthestPage * pageSize + i;
+          const loadedItem = filteredItems[index];
+          if (loadedItem && loadedItem.key === items[i].key) {
+            filteredItems[index] = placeholder;
+            splices.push({index: index, removed: [loadedItem], addedCount: 1, object: filteredItems, type: 'splice'});
+          }
+          delete loadedIndexes[items[i].key];
+        }
+        count -= items.length;
+        evictedPages.push(items);
+        delete providedPages[farthestPage];
+      }
+      if (splices.length > 0) {
+        // the combo box is notified once for all the dropped items
+        multiselectComboBox.$.comboBox.notifySplices('filteredItems', splices);
+      }
+      _releaseDroppedPages(evictedPages);
+    };
+
     const commitPage = function (page, callback) {
-      let data = cache[page];
+      let data = _getPage(page);
 
       if (multiselectComboBox._clientSideFilter) {
-        performClientSideFilter(data, callback)
+        performClientSideFilter(page, callback)
 
       } else {
-        // Remove the data if server-side filtering,
-        // but keep it for client-side filtering
+        // Move the data out of the cache if server-side filtering, but keep
+        // it for client-side filtering. The provided pages are kept for
+        // backtracking to the filter, see _switchFilter.
+        providedPages[page] = cache[page];
         delete cache[page];
+        evictProvidedPages(parseInt(page));
 
         // NOTE: It may be that we ought to provide data.length instead of
         // comboBox.size and remove the updateSize function.
-        callback(data, multiselectComboBox.$.comboBox.size);
+        _provide(page, data, multiselectComboBox.$.comboBox.size, callback);
       }
     };
 
-    // Perform filter on client side (here) using the items from specified page
-    // and submitting the filtered items to specified callback.
+    // Perform filter on client side (here) using the items of all preloaded
+    // pages and submitting the specified page of the filtered items to
+    // specified callback.
     // The filter used is the one from combobox, not the lastFilter stored since
     // that may not reflect user's input.
     const performClientSideFilter = function (page, callback) {
 
-      let filteredItems = page;
+      let filteredItems = [];
+      for (let i = 0; cache[i]; i++) {
+        filteredItems = filteredItems.concat(_getPage(i));
+      }
 
       if (multiselectComboBox.$.comboBox.filter) {
-        filteredItems = page.filter(item =>
+        filteredItems = filteredItems.filter(item =>
             multiselectComboBox.$connector.filter(item, multiselectComboBox.$.comboBox.filter));
       }
 
-      callback(filteredItems, filteredItems.length);
+      // the page may be given as a property name of pageCallbacks
+      const start = parseInt(page) * multiselectComboBox.$.comboBox.pageSize;
+      _provide(page, filteredItems.slice(start, start + multiselectComboBox.$.comboBox.pageSize),
+          filteredItems.length, callback);
+    };
+
+    // The configured filter debounce, or the average round trip time of the
+    // filter requests in adaptive mode, so that a request is not sent before
+    // the previous one could have been answered.
+    const _getFilterDebounce = function () {
+      const filterDebounce = multiselectComboBox._filterDebounce !== undefined
+          ? multiselectComboBox._filterDebounce : 500;
+      if (!multiselectComboBox._adaptiveFilterDebounce || averageRoundTripTime === null) {
+        return filterDebounce;
+      }
+      return Math.round(Math.min(2000, Math.max(50, averageRoundTripTime)));
+    };
+
+    // Passes the items of a page to the combo box, recording their indexes.
+    const _provide = function (page, items, size, callback) {
+      const start = parseInt(page) * multiselectComboBox.$.comboBox.pageSize;
+      for (let i = 0; i < items.length; i++) {
+        loadedIndexes[items[i].key] = start + i;
+      }
+      callback(items, size);
+    };
+
+    const _indexOf = function (filteredItems, key) {
+      const index = loadedIndexes[key];
+      const item = index !== undefined ? filteredItems[index] : undefined;
+      return item && item.key === key ? index : undefined;
+    };
+
+    const _rebuildIndexes = function (filteredItems) {
+      loadedIndexes = {};
+      for (let i = 0; i < filteredItems.length; i++) {
+        if (filteredItems[i] && filteredItems[i].key !== undefined) {
+          loadedIndexes[filteredItems[i].key] = i;
+        }
+      }
+    };
+
+    const _getPlaceholder = function (filteredItems) {
+      for (let i = 0; placeholder === null && i < filteredItems.length; i++) {
+        if (filteredItems[i] && filteredItems[i].key === undefined) {
+          placeholder = filteredItems[i];
+        }
+      }
+      return placeholder;
+    };
+
+    // Replaces an item of the provided pages, so that the pages kept for the
+    // filter hold the refreshed item.
+    const _updateProvidedItem = function (index, item) {
+      const pageSize = multiselectComboBox.$.comboBox.pageSize;
+      const items = providedPages[Math.floor(index / pageSize)];
+      if (items && items[index % pageSize] && items[index % pageSize].key === item.key) {
+        items[index % pageSize] = item;
+      }
+    };
+
+    // Gets the items of a cached page, expanding them to objects first if
+    // they were sent in the compact encoding. Items missing a field are sent
+    // as objects even then, so null values are kept as they are.
+    const _getPage = function (page) {
+      let data = cache[page];
+      if (data && !Array.isArray(data)) {
+        const fields = data.fields;
+        data = data.rows.map(row => {
+          if (!Array.isArray(row)) {
+            return row;
+          }
+          const item = {};
+          for (let i = 0; i < row.length; i++) {
+            item[fields[i]] = row[i];
+          }
+          return item;
+        });
+        cache[page] = data;
+      }
+      return data;
+    };
+
+    const _countItems = function (page) {
+      return Array.isArray(page) ? page.length : page.rows.length;
+    };
+
+    // Keeps the pages of the current filter and restores the pages of the
+    // given filter, if it was used recently
+    const _switchFilter = function (filter) {
+      const droppedPages = _cachedPages();
+      _keepFilterCache();
+      pageCallbacks = {};
+      cache = {};
+      providedPages = {};
+      loadedIndexes = {};
+      prefetchRequested = {};
+      lastSize = undefined;
+      for (let i = 0; i < filterCaches.length; i++) {
+        if (filterCaches[i].filter === filter) {
+          const filterCache = filterCaches.splice(i, 1)[0];
+          cache = filterCache.pages;
+          lastSize = filterCache.size;
+          multiselectComboBox.$.comboBox.size = filterCache.size;
+          break;
+        }
+      }
+      lastFilter = filter;
+      _releaseDroppedPages(droppedPages);
+    };
+
+    const _keepFilterCache = function () {
+      if (lastSize === undefined || multiselectComboBox._clientSideFilter) {
+        return;
+      }
+      const allPages = {};
+      for (let page in providedPages) {
+        allPages[page] = providedPages[page];
+      }
+      for (let page in cache) {
+        allPages[page] = cache[page];
+      }
+      // the first pages are the most likely to be viewed again
+      const pageNumbers = Object.getOwnPropertyNames(allPages)
+          .map(page => parseInt(page))
+          .sort((a, b) => a - b);
+      const pages = {};
+      let count = 0;
+      let pageCount = 0;
+      for (let i = 0; i < pageNumbers.length; i++) {
+        const itemCount = _countItems(allPages[pageNumbers[i]]);
+        if (count + itemCount > MAX_CACHED_FILTER_ITEMS) {
+          break;
+        }
+        pages[pageNumbers[i]] = allPages[pageNumbers[i]];
+        count += itemCount;
+        pageCount++;
+      }
+      if (pageCount === 0) {
+        return;
+      }
+
+      filterCaches.push({filter: lastFilter, pages: pages, size: lastSize, count: count});
+      let totalCount = 0;
+      for (let i = 0; i < filterCaches.length; i++) {
+        totalCount += filterCaches[i].count;
+      }
+      while (totalCount > MAX_CACHED_FILTER_ITEMS) {
+        totalCount -= filterCaches.shift().count;
+      }
+    };
+
+    // The server retains the keys of the items the client has received until
+    // told otherwise, so that any item the client shows can be selected.
+    // Tells the server about the keys of dropped pages whose items are not
+    // held anywhere else on the client.
+    const _releaseDroppedPages = function (droppedPages) {
+      if (droppedPages.length === 0) {
+        return;
+      }
+      const heldKeys = _heldKeys();
+      const releasedKeys = [];
+      for (let i = 0; i < droppedPages.length; i++) {
+        const keys = _pageKeys(droppedPages[i]);
+        for (let j = 0; j < keys.length; j++) {
+          if (!heldKeys[keys[j]]) {
+            heldKeys[keys[j]] = true;
+            releasedKeys.push(keys[j]);
+          }
+        }
+      }
+      if (releasedKeys.length > 0) {
+        multiselectComboBox.$server.releaseKeys(releasedKeys);
+      }
+    };
+
+    const _cachedPages = function () {
+      const pages = [];
+      const addPages = function (cachedPages) {
+        for (let page in cachedPages) {
+          pages.push(cachedPages[page]);
+        }
+      };
+      addPages(cache);
+      addPages(providedPages);
+      for (let i = 0; i < filterCaches.length; i++) {
+        addPages(filterCaches[i].pages);
+      }
+      return pages;
+    };
+
+    const _heldKeys = function () {
+      const keys = {};
+      const pages = _cachedPages();
+      for (let i = 0; i < pages.length; i++) {
+        const pageKeys = _pageKeys(pages[i]);
+        for (let j = 0; j < pageKeys.length; j++) {
+          keys[pageKeys[j]] = true;
+        }
+      }
+      // the items loaded into the combo box are held by the provided pages,
+      // or by the cache when filtering on the client
+      const items = multiselectComboBox.selectedItems || [];
+      for (let i = 0; i < items.length; i++) {
+        if (items[i] && items[i].key !== undefined) {
+          keys[items[i].key] = true;
+        }
+      }
+      return keys;
+    };
+
+    const _pageKeys = function (page) {
+      if (Array.isArray(page)) {
+        return page.map(item => item.key);
+      }
+      const keyIndex = page.fields.indexOf('key');
+      return page.rows.map(row => Array.isArray(row) ? row[keyIndex] : row.key);
+    };
+
+    const _countCachedItems = function () {
+      let count = 0;
+      for (let page in cache) {
+        count += _countItems(cache[page]);
+      }
+      return count;
+    };
+
+    // Finds the keys added and removed by a change of the selected items.
+    // The web component appends a picked item and removes an unpicked one
+    // keeping the order of the others, so the change of a single click is
+    // found without indexing the keys of all the selected items. Other
+    // changes are compared only in the window between the items that are
+    // unchanged at the start and at the end, instead of indexing the keys
+    // of all the selected items and comparing them with the acknowledged
+    // keys.
+    const _selectionChanges = function (previousItems, items) {
+      if (items.length === previousItems.length + 1) {
+        const addedItem = items[items.length - 1];
+        if (addedItem && !selectedKeys[addedItem.key]
+            && (previousItems.length === 0 || items[items.length - 2] === previousItems[previousItems.length - 1])) {
+          return {addedKeys: [addedItem.key], removedKeys: []};
+        }
+      } else if (items.length === 0) {
+        return {addedKeys: [], removedKeys: Object.keys(selectedKeys)};
+      }
+      let start = 0;
+      const length = Math.min(items.length, previousItems.length);
+      while (start < length && items[start] === previousItems[start]) {
+        start++;
+      }
+      let end = items.length;
+      let previousEnd = previousItems.length;
+      while (end > start && previousEnd > start && items[end - 1] === previousItems[previousEnd - 1]) {
+        end--;
+        previousEnd--;
+      }
+      const keys = _keysOf(items, start, end);
+      const previousKeys = _keysOf(previousItems, start, previousEnd);
+      // items replaced by other objects with the same key are not changed
+      return {
+        addedKeys: Object.keys(keys).filter(key => !previousKeys[key] && !selectedKeys[key]),
+        removedKeys: Object.keys(previousKeys).filter(key => !keys[key] && selectedKeys[key])
+      };
+    };
+
+    const _keysOf = function (items, start = 0, end = items.length) {
+      const keys = {};
+      for (let i = start; i < end; i++) {
+        keys[items[i].key] = true;
+      }
+      return keys;
     };
 
     const _hasDataProvider = function(multiselectComboBox) {
@@ -0,0 +1,278 @@
+package org.vaadin.gatanaso;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.flow.data.provider.CallbackDataProvider;
+import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.data.provider.DataProviderListener;
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.function.SerializablePredicate;
+import com.vaadin.flow.shared.Registration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Tests for the {@link CachingDataProvider}.
+ */
+public class CachingDataProviderTest {
+
+    private final AtomicInteger fetchCount = new AtomicInteger();
+    private DataProvider<String, String> backend;
+
+    @Before
+    public void setUp() {
+        List<String> items = IntStream.range(0, 100)
+                .mapToObj(i -> "item " + i).collect(Collectors.toList());
+        backend = DataProvider.fromFilteringCallbacks(query -> {
+            fetchCount.incrementAndGet();
+            return items.stream()
+                    .filter(item -> item.contains(query.getFilter().orElse("")))
+                    .skip(query.getOffset()).limit(query.getLimit());
+        }, query -> (int) items.stream()
+                .filter(item -> item.contains(query.getFilter().orElse("")))
+                .count());
+    }
+
+    @Test
+    public void shouldAnswerSameQueryFromCache() {
+        // given
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                backend, 10, Duration.ofMinutes(1));
+
+        // when
+        List<String> first = fetch(dataProvider, "1", 0, 3);
+        List<String> second = fetch(dataProvider, "1", 0, 3);
+        fetch(dataProvider, "1", 3, 3);
+
+        // then
+        assertThat(first, contains("item 1", "item 10", "item 11"));
+        assertThat(second, is(first));
+        assertThat(fetchCount.get(), is(2));
+        assertThat(dataProvider.getHitCount(), is(1L));
+        assertThat(dataProvider.getMissCount(), is(2L));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResults() {
+        // given
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                backend, 2, Duration.ofMinutes(1));
+        fetch(dataProvider, "1", 0, 3);
+        fetch(dataProvider, "2", 0, 3);
+
+        // when
+        fetch(dataProvider, "1", 0, 3);
+        fetch(dataProvider, "3", 0, 3);
+
+        // then
+        assertThat(dataProvider.getCachedResultCount(), is(2));
+        assertThat(dataProvider.getEvictionCount(), is(1L));
+        fetch(dataProvider, "1", 0, 3);
+        assertThat(fetchCount.get(), is(3));
+    }
+
+    @Test
+    public void shouldInvalidateCacheWhenRefreshed() {
+        // given
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                backend, 10, Duration.ofMinutes(1));
+        AtomicInteger changeEvents = new AtomicInteger();
+        dataProvider.addDataProviderListener(
+                event -> changeEvents.incrementAndGet());
+        fetch(dataProvider, "1", 0, 3);
+
+        // when
+        backend.refreshAll();
+        fetch(dataProvider, "1", 0, 3);
+        dataProvider.refreshAll();
+        fetch(dataProvider, "1", 0, 3);
+
+        // then
+        assertThat(fetchCount.get(), is(3));
+        assertThat(changeEvents.get(), is(2));
+    }
+
+    @Test
+    public void shouldNotCacheResultFetchedBeforeInvalidation() {
+        // given
+        AtomicReference<CachingDataProvider<String, String>> cache = new AtomicReference<>();
+        DataProvider<String, String> refreshedBackend = DataProvider
+                .fromFilteringCallbacks(query -> {
+                    if (fetchCount.get() == 0) {
+                        // the data changes while the first result is fetched
+                        cache.get().invalidate();
+                    }
+                    return backend.fetch(query);
+                }, backend::size);
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                refreshedBackend, 10, Duration.ofMinutes(1));
+        cache.set(dataProvider);
+
+        // when
+        fetch(dataProvider, "1", 0, 3);
+        fetch(dataProvider, "1", 0, 3);
+        fetch(dataProvider, "1", 0, 3);
+
+        // then
+        assertThat(fetchCount.get(), is(2));
+        assertThat(dataProvider.getCachedResultCount(), is(1));
+    }
+
+    @Test
+    public void shouldFetchIdenticalConcurrentQueriesOnce() throws Exception {
+        // given
+        CountDownLatch fetchStarted = new CountDownLatch(1);
+        CountDownLatch fetchReleased = new CountDownLatch(1);
+        DataProvider<String, String> slowBackend = DataProvider
+                .fromFilteringCallbacks(query -> {
+                    fetchStarted.countDown();
+                    try {
+                        fetchReleased.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return backend.fetch(query);
+                }, backend::size);
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                slowBackend, 10, Duration.ofMinutes(1));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // when
+            Future<List<String>> first = executor
+                    .submit(() -> fetch(dataProvider, "1", 0, 3));
+            fetchStarted.await(10, TimeUnit.SECONDS);
+            Future<List<String>> second = executor
+                    .submit(() -> fetch(dataProvider, "1", 0, 3));
+            // the second query waits for the first one
+            while (dataProvider.getHitCount() == 0) {
+                Thread.sleep(1);
+            }
+            fetchReleased.countDown();
+
+            // then
+            assertThat(second.get(10, TimeUnit.SECONDS),
+                    is(first.get(10, TimeUnit.SECONDS)));
+            assertThat(fetchCount.get(), is(1));
+            assertThat(dataProvider.getMissCount(), is(1L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldListenToWrappedProviderOnlyWhileListenedTo() {
+        // given
+        AtomicInteger backendListeners = new AtomicInteger();
+        DataProvider<String, String> listenedBackend = new CallbackDataProvider<String, String>(
+                backend::fetch, backend::size) {
+            @Override
+            public Registration addDataProviderListener(
+                    DataProviderListener<String> listener) {
+                backendListeners.incrementAndGet();
+                Registration registration = super.addDataProviderListener(
+                        listener);
+                return () -> {
+                    backendListeners.decrementAndGet();
+                    registration.remove();
+                };
+            }
+        };
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                listenedBackend, 10, Duration.ofMinutes(1));
+
+        // when
+        Registration first = dataProvider.addDataProviderListener(event -> {
+        });
+        Registration second = dataProvider.addDataProviderListener(event -> {
+        });
+
+        // then
+        assertThat(backendListeners.get(), is(1));
+
+        // when
+        first.remove();
+        first.remove();
+
+        // then
+        assertThat(backendListeners.get(), is(1));
+
+        // when
+        second.remove();
+
+        // then
+        assertThat(backendListeners.get(), is(0));
+    }
+
+    @Test
+    public void shouldAllowChangingListenersWhileRefreshing() {
+        // given
+        CachingDataProvider<String, String> dataProvider = new CachingDataProvider<>(
+                backend, 10, Duration.ofMinutes(1));
+        AtomicInteger fired = new AtomicInteger();
+        AtomicReference<Registration> registration = new AtomicReference<>();
+        registration.set(dataProvider.addDataProviderListener(event -> {
+            fired.incrementAndGet();
+            registration.get().remove();
+            dataProvider.addDataProviderListener(added -> {
+                fired.incrementAndGet();
+            });
+        }));
+
+        // when
+        dataProvider.refreshAll();
+
+        // then
+        assertThat(fired.get(), is(1));
+
+        // when
+        dataProvider.refreshAll();
+
+        // then
+        assertThat(fired.get(), is(2));
+    }
+
+    @Test
+    public void shouldNotCacheFiltersWithoutEquals() {
+        // given
+        DataProvider<String, SerializablePredicate<String>> predicateBackend = DataProvider
+                .fromFilteringCallbacks(query -> backend.fetch(new Query<>())
+                        .filter(query.getFilter().orElse(item -> true)),
+                        query -> 100);
+        CachingDataProvider<String, SerializablePredicate<String>> dataProvider = new CachingDataProvider<>(
+                predicateBackend, 10, Duration.ofMinutes(1));
+
+        // when
+        for (int i = 0; i < 2; i++) {
+            dataProvider.fetch(new Query<>(0, 3, null, null,
+                    item -> item.contains("1"))).count();
+        }
+
+        // then
+        assertThat(fetchCount.get(), is(2));
+        assertThat(dataProvider.getCachedResultCount(), is(0));
+    }
+
+    private static List<String> fetch(
+            DataProvider<String, String> dataProvider, String filter,
+            int offset, int limit) {
+        return dataProvider
+                .fetch(new Query<>(offset, limit, null, null, filter))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,120 @@
+package org.vaadin.gatanaso;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Tests for the {@link CompactItemEncoding}.
+ */
+public class CompactItemEncodingTest {
+
+    @Test
+    public void shouldEncodeItemsAsFieldNamesAndRows() {
+        // given
+        List<JsonValue> items = new ArrayList<>();
+        items.add(createItem("1", "one"));
+        JsonObject itemWithoutLabel = Json.createObject();
+        itemWithoutLabel.put("key", "2");
+        items.add(itemWithoutLabel);
+        JsonObject itemWithExtraField = createItem("3", "three");
+        itemWithExtraField.put("icon", "star");
+        items.add(itemWithExtraField);
+
+        // when
+        JsonArray encoded = CompactItemEncoding.encode(items);
+
+        // then
+        assertThat(encoded.toJson(), is(
+                "[[\"key\",\"label\",\"icon\"],[\"1\",\"one\"],[\"2\"],[\"3\",\"three\",\"star\"]]"));
+        assertThat(expand(encoded).toJson(), is(toArray(items).toJson()));
+    }
+
+    @Test
+    public void shouldKeepNullValuesApartFromMissingFields() {
+        // given
+        List<JsonValue> items = new ArrayList<>();
+        items.add(createItem("1", "one"));
+        JsonObject itemWithNullLabel = Json.createObject();
+        itemWithNullLabel.put("key", "2");
+        itemWithNullLabel.put("label", Json.createNull());
+        items.add(itemWithNullLabel);
+        JsonObject itemWithoutLabel = Json.createObject();
+        itemWithoutLabel.put("key", "3");
+        itemWithoutLabel.put("icon", "star");
+        items.add(itemWithoutLabel);
+
+        // when
+        JsonArray encoded = CompactItemEncoding.encode(items);
+
+        // then
+        assertThat(encoded.toJson(), is(
+                "[[\"key\",\"label\",\"icon\"],[\"1\",\"one\"],[\"2\",null],{\"key\":\"3\",\"icon\":\"star\"}]"));
+        assertThat(expand(encoded).toJson(), is(toArray(items).toJson()));
+    }
+
+    @Test
+    public void shouldReducePayloadSizeOfTypicalPages() {
+        for (int pageSize : new int[] { 10, 50, 100, 500 }) {
+            // given
+            List<JsonValue> items = new ArrayList<>();
+            for (int i = 0; i < pageSize; i++) {
+                items.add(createItem(String.valueOf(i), "Item " + i));
+            }
+
+            // when
+            int plainSize = toArray(items).toJson().length();
+            int compactSize = CompactItemEncoding.encode(items).toJson()
+                    .length();
+
+            // then
+            assertThat("page size " + pageSize, compactSize,
+                    lessThan(plainSize * 3 / 5));
+        }
+    }
+
+    private static JsonObject createItem(String key, String label) {
+        JsonObject item = Json.createObject();
+        item.put("key", key);
+        item.put("label", label);
+        return item;
+    }
+
+    private static JsonArray toArray(List<JsonValue> items) {
+        JsonArray array = Json.createArray();
+        for (JsonValue item : items) {
+            array.set(array.length(), item);
+        }
+        return array;
+    }
+
+    // same as the expansion done by the connector
+    private static JsonArray expand(JsonArray encoded) {
+        JsonArray fields = encoded.getArray(0);
+        JsonArray items = Json.createArray();
+        for (int i = 1; i < encoded.length(); i++) {
+            if (encoded.get(i).getType() == JsonType.OBJECT) {
+                items.set(items.length(), encoded.getObject(i));
+                continue;
+            }
+            JsonArray row = encoded.getArray(i);
+            JsonObject item = Json.createObject();
+            for (int j = 0; j < row.length(); j++) {
+                item.put(fields.getString(j), row.get(j));
+            }
+            items.set(items.length(), item);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,144 @@
+package org.vaadin.gatanaso;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.shared.Registration;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Tests for the {@link IndexedListDataProvider}.
+ */
+public class IndexedListDataProviderTest {
+
+    @Test
+    public void shouldFindSameItemsAsScanningAllLabels() {
+        // given
+        List<String> items = IntStream.range(0, 5000)
+                .mapToObj(i -> "Item-" + Integer.toString(i * 7919, 36))
+                .collect(Collectors.toList());
+        IndexedListDataProvider<String> dataProvider = new IndexedListDataProvider<>(
+                items, String::valueOf, Locale.ROOT);
+
+        for (String filter : Arrays.asList("", "i", "3z", "ITEM", "-a1",
+                "m-1", "abc", "not found")) {
+            // when
+            List<String> fetched = dataProvider
+                    .fetch(new Query<>(0, Integer.MAX_VALUE, null, null,
+                            filter))
+                    .collect(Collectors.toList());
+            int size = dataProvider
+                    .size(new Query<>(0, Integer.MAX_VALUE, null, null, filter));
+
+            // then
+            List<String> expected = items.stream()
+                    .filter(item -> item.toLowerCase(Locale.ROOT)
+                            .contains(filter.toLowerCase(Locale.ROOT)))
+                    .collect(Collectors.toList());
+            assertThat(fetched, is(expected));
+            assertThat(size, is(expected.size()));
+        }
+    }
+
+    @Test
+    public void shouldFetchRequestedPageOfMatches() {
+        // given
+        List<String> items = IntStream.range(0, 100)
+                .mapToObj(i -> "item " + i).collect(Collectors.toList());
+        IndexedListDataProvider<String> dataProvider = new IndexedListDataProvider<>(
+                items);
+
+        // when
+        List<String> page = dataProvider
+                .fetch(new Query<>(2, 3, null, null, "item 1"))
+                .collect(Collectors.toList());
+
+        // then
+        assertThat(page, contains("item 11", "item 12", "item 13"));
+    }
+
+    @Test
+    public void shouldUpdateMatchesWhenItemsAreAddedAndRemoved() {
+        // given
+        IndexedListDataProvider<String> dataProvider = new IndexedListDataProvider<>(
+                Arrays.asList("apple", "pineapple", "banana"));
+        Query<String, String> query = new Query<>(0, Integer.MAX_VALUE, null,
+                null, "apple");
+        assertThat(dataProvider.size(query), is(2));
+
+        // when
+        dataProvider.removeItem("apple");
+        dataProvider.addItem("Apple pie");
+
+        // then
+        assertThat(dataProvider.fetch(query).collect(Collectors.toList()),
+                contains("pineapple", "Apple pie"));
+        assertThat(dataProvider.getItems(),
+                contains("pineapple", "banana", "Apple pie"));
+    }
+
+    @Test
+    public void shouldAnswerEmptyAndShortFiltersAfterRemovals() {
+        // given
+        List<String> items = IntStream.range(0, 100)
+                .mapToObj(i -> "item " + i).collect(Collectors.toList());
+        IndexedListDataProvider<String> dataProvider = new IndexedListDataProvider<>(
+                items);
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            dataProvider.removeItem("item " + i);
+        }
+
+        // then
+        assertThat(dataProvider.fetch(new Query<>(2, 3, null, null, ""))
+                .collect(Collectors.toList()),
+                contains("item 12", "item 13", "item 14"));
+        assertThat(dataProvider.size(new Query<>(0, 3, null, null, "")),
+                is(90));
+        assertThat(dataProvider.fetch(new Query<>(0, 3, null, null, "1"))
+                .collect(Collectors.toList()),
+                contains("item 10", "item 11", "item 12"));
+        assertThat(dataProvider.size(new Query<>(0, 3, null, null, "19")),
+                is(1));
+    }
+
+    @Test
+    public void shouldAllowChangingListenersWhileRefreshing() {
+        // given
+        IndexedListDataProvider<String> dataProvider = new IndexedListDataProvider<>(
+                Arrays.asList("a", "b"));
+        AtomicInteger fired = new AtomicInteger();
+        AtomicReference<Registration> registration = new AtomicReference<>();
+        registration.set(dataProvider.addDataProviderListener(event -> {
+            fired.incrementAndGet();
+            registration.get().remove();
+            dataProvider.addDataProviderListener(added -> {
+                fired.incrementAndGet();
+            });
+        }));
+
+        // when
+        dataProvider.refreshItem("a");
+
+        // then
+        assertThat(fired.get(), is(1));
+
+        // when
+        dataProvider.refreshAll();
+
+        // then
+        assertThat(fired.get(), is(2));
+    }
+}
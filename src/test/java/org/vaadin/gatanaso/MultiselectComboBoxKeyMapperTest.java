@@ -0,0 +1,371 @@
+package org.vaadin.gatanaso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Tests for the {@link MultiselectComboBoxKeyMapper}.
+ */
+public class MultiselectComboBoxKeyMapperTest {
+
+    @Test
+    public void shouldUseIntegralUniqueKeyDataAsKey() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setUniqueKeyDataGenerator(String::length);
+
+        // when
+        String key = keyMapper.key("four");
+
+        // then
+        assertThat(key, is("4"));
+        assertThat(keyMapper.get(key), is("four"));
+    }
+
+    @Test
+    public void shouldCreateDistinctKeysForCollidingUniqueKeyData() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setUniqueKeyDataGenerator(item -> 1);
+
+        // when
+        String first = keyMapper.key("first");
+        String second = keyMapper.key("second");
+
+        // then
+        assertThat(first, is(not(second)));
+        assertThat(keyMapper.get(first), is("first"));
+        assertThat(keyMapper.get(second), is("second"));
+        assertThat(keyMapper.getCollisionCount(), is(1L));
+    }
+
+    @Test
+    public void shouldNotReissueEvictedKeyToCollidingItem() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(0);
+        keyMapper.setUniqueKeyDataGenerator(item -> 1);
+        keyMapper.activate("first");
+        String first = keyMapper.key("first");
+        keyMapper.remove("first");
+
+        // when
+        String second = keyMapper.key("second");
+
+        // then
+        assertThat(second, is(not(first)));
+        assertThat(keyMapper.get(first), is(nullValue()));
+        assertThat(keyMapper.get(second), is("second"));
+    }
+
+    @Test
+    public void shouldNotReissueEvictedKeyToItemWithSameIdHash() {
+        // given, "Aa" and "BB" have the same hash code
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(0);
+        keyMapper.activate("Aa");
+        String first = keyMapper.key("Aa");
+        keyMapper.remove("Aa");
+
+        // when
+        keyMapper.activate("BB");
+
+        // then
+        assertThat(keyMapper.key("BB"), is(not(first)));
+        assertThat(keyMapper.get(first), is(nullValue()));
+    }
+
+    @Test
+    public void shouldResolveEvictedKeyThroughItemLookup() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(0);
+        keyMapper.setItemLookup(id -> "item".equals(id) ? "item" : null);
+        keyMapper.activate("item");
+        String key = keyMapper.key("item");
+        keyMapper.remove("item");
+
+        // when
+        String item = keyMapper.get(key);
+
+        // then, the key is retained again
+        assertThat(item, is("item"));
+        assertThat(keyMapper.get(key), is("item"));
+        assertThat(keyMapper.key("item"), is(key));
+    }
+
+    @Test
+    public void shouldForgetReleasedKeys() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(0);
+        keyMapper.setUniqueKeyDataGenerator(item -> 1);
+        keyMapper.activate("first");
+        String first = keyMapper.key("first");
+        keyMapper.remove("first");
+
+        // when
+        keyMapper.releaseRetainedKeys(Arrays.asList(first));
+
+        // then
+        assertThat(keyMapper.key("second"), is(first));
+        assertThat(keyMapper.getCollisionCount(), is(0L));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyRetainedKeys() {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(10);
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            keyMapper.activate(i);
+            keyMapper.remove(i);
+        }
+
+        // then
+        assertThat(keyMapper.getRetainedKeyCount(), is(10));
+        assertThat(keyMapper.get("89"), is(nullValue()));
+        assertThat(keyMapper.get("90"), is(90));
+        assertThat(keyMapper.get("99"), is(99));
+        assertThat(keyMapper.key(0), is("0"));
+    }
+
+    @Test
+    public void shouldNotEvictOrReleasePinnedKeys() {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(10);
+        keyMapper.setPinnedKeys(Collections.singleton("0"));
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            keyMapper.activate(i);
+            keyMapper.remove(i);
+        }
+        keyMapper.releaseRetainedKeys(Arrays.asList("0", "99"));
+        keyMapper.releaseRetainedKeys();
+
+        // then
+        assertThat(keyMapper.getRetainedKeyCount(), is(1));
+        assertThat(keyMapper.get("0"), is(0));
+        assertThat(keyMapper.get("99"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldPinCopyOfGivenKeys() {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        List<String> pinnedKeys = new ArrayList<>(Arrays.asList("0"));
+        keyMapper.setPinnedKeys(pinnedKeys);
+        keyMapper.activate(0);
+        keyMapper.activate(1);
+        keyMapper.remove(0);
+        keyMapper.remove(1);
+
+        // when
+        pinnedKeys.add("1");
+        keyMapper.releaseRetainedKeys();
+
+        // then
+        assertThat(keyMapper.get("0"), is(0));
+        assertThat(keyMapper.get("1"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldKeepKeyOfCollidingItemWhenMappedAgain() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setUniqueKeyDataGenerator(item -> 1);
+        keyMapper.key("first");
+        String second = keyMapper.key("second");
+
+        // when
+        keyMapper.remove("first");
+        keyMapper.remove("second");
+
+        // then
+        assertThat(keyMapper.key("second"), is(second));
+        assertThat(keyMapper.getCollisionCount(), is(1L));
+    }
+
+    @Test
+    public void shouldReturnSameKeyWhenItemIsMappedAgain() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setUniqueKeyDataGenerator(item -> "id-" + item);
+        String key = keyMapper.key("item");
+
+        // when
+        keyMapper.remove("item");
+
+        // then
+        assertThat(keyMapper.has("item"), is(false));
+        assertThat(keyMapper.get(key), is(nullValue()));
+        assertThat(keyMapper.key("item"), is(key));
+    }
+
+    @Test
+    public void shouldResolveRetainedKeysUntilReleased() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.activate("item");
+        String key = keyMapper.key("item");
+
+        // when
+        keyMapper.remove("item");
+
+        // then
+        assertThat(keyMapper.has("item"), is(false));
+        assertThat(keyMapper.get(key), is("item"));
+
+        // when
+        keyMapper.releaseRetainedKeys();
+
+        // then
+        assertThat(keyMapper.get(key), is(nullValue()));
+    }
+
+    @Test
+    public void shouldKeepKeysRetainedUntilActivated() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.activate("item");
+        String key = keyMapper.key("item");
+        keyMapper.remove("item");
+
+        // when
+        String selectedKey = keyMapper.key("item");
+        String newKey = keyMapper.key("new item");
+
+        // then
+        assertThat(selectedKey, is(key));
+        assertThat(keyMapper.has("item"), is(false));
+        assertThat(keyMapper.has("new item"), is(false));
+        assertThat(keyMapper.get(newKey), is("new item"));
+        assertThat(keyMapper.getRetainedKeyCount(), is(2));
+
+        // when
+        keyMapper.activate("item");
+
+        // then
+        assertThat(keyMapper.has("item"), is(true));
+        assertThat(keyMapper.getRetainedKeyCount(), is(1));
+    }
+
+    @Test
+    public void shouldRefreshItemActivatedAgainAfterRetention() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setUniqueKeyDataGenerator(item -> item.charAt(0));
+        keyMapper.setIdentifierGetter(item -> item.charAt(0));
+        keyMapper.activate("a1");
+        String key = keyMapper.key("a1");
+        keyMapper.remove("a1");
+
+        // when
+        keyMapper.activate("a2");
+
+        // then
+        assertThat(keyMapper.has("a2"), is(true));
+        assertThat(keyMapper.key("a2"), is(key));
+        assertThat(keyMapper.get(key), is("a2"));
+
+        // when
+        keyMapper.refresh("a3");
+
+        // then
+        assertThat(keyMapper.get(key), is("a3"));
+    }
+
+    @Test
+    public void shouldReissueEvictedKeyToItsItem() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setMaxRetainedKeys(0);
+        keyMapper.setUniqueKeyDataGenerator(item -> 1);
+        keyMapper.activate("item");
+        String key = keyMapper.key("item");
+        keyMapper.remove("item");
+
+        // when
+        keyMapper.activate("item");
+
+        // then
+        assertThat(keyMapper.key("item"), is(key));
+        assertThat(keyMapper.get(key), is("item"));
+    }
+
+    @Test
+    public void shouldIgnoreKeysNotCreatedByMapper() {
+        // given
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.key("item");
+
+        // when & then
+        assertThat(keyMapper.get("not a key"), is(nullValue()));
+        assertThat(keyMapper.get(null), is(nullValue()));
+    }
+
+    @Test
+    public void shouldKeepKeysOfManyItems() {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        for (int i = 0; i < 100_000; i++) {
+            keyMapper.key(i);
+        }
+
+        // when
+        for (int i = 0; i < 100_000; i += 2) {
+            keyMapper.remove(i);
+        }
+
+        // then
+        for (int i = 0; i < 100_000; i++) {
+            assertThat(keyMapper.get(String.valueOf(i)), is(i % 2 == 0 ? null : i));
+        }
+    }
+
+    @Test
+    public void shouldReleaseOnlyGivenRetainedKeys() {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        for (int i = 0; i < 1000; i++) {
+            keyMapper.activate(i);
+            keyMapper.remove(i);
+        }
+        keyMapper.activate(2);
+
+        // when
+        keyMapper.releaseRetainedKeys(Arrays.asList("1", "2", "not a key"));
+
+        // then
+        assertThat(keyMapper.getRetainedKeyCount(), is(998));
+        assertThat(keyMapper.get("1"), is(nullValue()));
+        assertThat(keyMapper.get("2"), is(2));
+        assertThat(keyMapper.get("999"), is(999));
+    }
+}
@@ -0,0 +1,302 @@
+package org.vaadin.gatanaso;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.data.provider.KeyMapper;
+import com.vaadin.flow.function.SerializableFunction;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Tests for the serialized size of the {@link MultiselectComboBox} and its
+ * key mapper, which is replicated with the session.
+ */
+public class MultiselectComboBoxSerializationTest {
+
+    private static final int ITEM_COUNT = 1000;
+
+    @Test
+    public void shouldSerializeKeysSmallerThanFlowKeyMapper() throws Exception {
+        // given
+        KeyMapper<Integer> flowKeyMapper = new KeyMapper<>();
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            flowKeyMapper.key(i);
+        }
+        int flowKeyMapperSize = serialize(flowKeyMapper).length;
+
+        // when
+        int keyMapperSize = serialize(createKeyMapper(ITEM_COUNT)).length;
+
+        // then
+        assertThat(keyMapperSize, is(lessThan(flowKeyMapperSize)));
+    }
+
+    @Test
+    public void shouldSerializeRetainedKeysSmallerThanActiveKeys() throws Exception {
+        // given, items that are larger than their ids
+        int activeKeysSize = serialize(createBeanKeyMapper(ITEM_COUNT)).length;
+        MultiselectComboBoxKeyMapper<TestBean> keyMapper = createBeanKeyMapper(
+                ITEM_COUNT);
+
+        // when
+        for (int i = 50; i < ITEM_COUNT; i++) {
+            keyMapper.remove(new TestBean(i));
+        }
+
+        // then
+        assertThat(serialize(keyMapper).length,
+                is(lessThan(activeKeysSize / 2)));
+    }
+
+    @Test
+    public void shouldKeepSerializedSizeOfKeysAfterDeserialization() throws Exception {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = createKeyMapper(ITEM_COUNT);
+        for (int i = 50; i < ITEM_COUNT; i++) {
+            keyMapper.remove(i);
+        }
+        byte[] bytes = serialize(keyMapper);
+
+        // when
+        MultiselectComboBoxKeyMapper<Integer> deserialized = deserialize(bytes);
+
+        // then, the retained keys are kept as evicted keys
+        assertThat(serialize(deserialized).length, is(bytes.length));
+    }
+
+    @Test
+    public void shouldSerializeRetainedKeysCompactly() throws Exception {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = createKeyMapper(50);
+        int activeKeysSize = serialize(keyMapper).length;
+
+        // when
+        for (int i = 50; i < ITEM_COUNT; i++) {
+            keyMapper.activate(i);
+            keyMapper.remove(i);
+        }
+
+        // then, only the key and the id of each retained key
+        int retainedKeysSize = serialize(keyMapper).length - activeKeysSize;
+        assertThat(retainedKeysSize / (ITEM_COUNT - 50), is(lessThan(20)));
+    }
+
+    @Test
+    public void shouldResolveRetainedKeysAfterDeserialization() throws Exception {
+        // given
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = createKeyMapper(50);
+        keyMapper.activate(100);
+        keyMapper.remove(100);
+
+        // when
+        MultiselectComboBoxKeyMapper<Integer> deserialized = deserialize(
+                serialize(keyMapper));
+
+        // then, the item of a retained key is looked up by its id
+        assertThat(deserialized.get("10"), is(10));
+        assertThat(deserialized.has(100), is(false));
+        assertThat(deserialized.get("100"), is(nullValue()));
+        deserialized.setItemLookup(id -> (Integer) id);
+        assertThat(deserialized.get("100"), is(100));
+        assertThat(deserialized.key(100), is("100"));
+    }
+
+    @Test
+    public void shouldNotReissueRetainedKeysToOtherItemsAfterDeserialization() throws Exception {
+        // given, items whose unique key data collides
+        MultiselectComboBoxKeyMapper<String> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setUniqueKeyDataGenerator(
+                (SerializableFunction<String, Object>) item -> 1);
+        keyMapper.activate("first");
+        String first = keyMapper.key("first");
+        keyMapper.remove("first");
+
+        // when
+        MultiselectComboBoxKeyMapper<String> deserialized = deserialize(
+                serialize(keyMapper));
+
+        // then
+        assertThat(deserialized.key("second"), is(not(first)));
+        assertThat(deserialized.key("first"), is(first));
+    }
+
+    @Test
+    public void shouldSerializeSelectionCompactly() throws Exception {
+        // given
+        List<String> items = IntStream.range(0, ITEM_COUNT)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        int withoutSelectionSize = serialize(createAttached(items, 0)).length;
+
+        // when
+        int withSelectionSize = serialize(createAttached(items, 500)).length;
+
+        // then, a few bytes for the value, the key mapping and the key known
+        // by the client of each selected item
+        assertThat((withSelectionSize - withoutSelectionSize) / 500,
+                is(lessThan(100)));
+    }
+
+    @Test
+    public void shouldNotGrowSelectionWhenSerializedAgain() throws Exception {
+        // given
+        List<String> items = IntStream.range(0, ITEM_COUNT)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        byte[] bytes = serialize(createAttached(items, 500));
+
+        // when
+        MultiselectComboBox<String> deserialized = deserialize(bytes);
+
+        // then
+        assertThat(serialize(deserialized).length,
+                is(lessThanOrEqualTo(bytes.length)));
+    }
+
+    @Test
+    public void shouldKeepSelectionAfterDeserialization() throws Exception {
+        // given
+        List<String> items = IntStream.range(0, ITEM_COUNT)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = createAttached(items,
+                10);
+
+        // when
+        MultiselectComboBox<String> deserialized = deserialize(
+                serialize(multiselectComboBox));
+        deserialized.deselect("Item 0");
+
+        // then
+        assertThat(deserialized.getValue().size(), is(9));
+    }
+
+    @Test
+    public void shouldSelectItemShownBeforeDeserialization() throws Exception {
+        // given, the client still shows an item that is no longer selected
+        List<String> items = IntStream.range(0, ITEM_COUNT)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = createAttached(items,
+                0);
+        UI ui = multiselectComboBox.getUI().get();
+        multiselectComboBox.setValue(Collections.singleton("Item 100"));
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        multiselectComboBox.setValue(Collections.emptySet());
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        ui.getInternals().dumpPendingJavaScriptInvocations();
+        JsonArray addedKeys = Json.createArray();
+        addedKeys.set(0, new MultiselectComboBoxKeyMapper<String>()
+                .key("Item 100"));
+
+        // when
+        MultiselectComboBox<String> deserialized = deserialize(
+                serialize(multiselectComboBox));
+        deserialized.updateSelectedItems(addedKeys, Json.createArray());
+
+        // then
+        assertThat(deserialized.getValue(),
+                is(Collections.singleton("Item 100")));
+    }
+
+    @Test
+    public void shouldNotSerializeNormalizedLabelsOfFilter() throws Exception {
+        // given
+        List<String> items = IntStream.range(0, ITEM_COUNT)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = createAttached(items,
+                0);
+        int withoutFilterSize = serialize(multiselectComboBox).length;
+
+        // when, the labels of all items are normalized to filter them
+        multiselectComboBox.setRequestedRange(0, 50, "item");
+        UI ui = multiselectComboBox.getUI().get();
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        ui.getInternals().dumpPendingJavaScriptInvocations();
+
+        // then, a few bytes for the keys of the sent items only
+        assertThat(serialize(multiselectComboBox).length - withoutFilterSize,
+                is(lessThan(ITEM_COUNT * 10)));
+    }
+
+    private static MultiselectComboBoxKeyMapper<Integer> createKeyMapper(
+            int activeKeys) {
+        MultiselectComboBoxKeyMapper<Integer> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        for (int i = 0; i < activeKeys; i++) {
+            keyMapper.activate(i);
+        }
+        return keyMapper;
+    }
+
+    private static MultiselectComboBoxKeyMapper<TestBean> createBeanKeyMapper(
+            int activeKeys) {
+        MultiselectComboBoxKeyMapper<TestBean> keyMapper = new MultiselectComboBoxKeyMapper<>();
+        keyMapper.setRetainRemovedKeys(true);
+        keyMapper.setIdentifierGetter(bean -> bean.id);
+        for (int i = 0; i < activeKeys; i++) {
+            keyMapper.activate(new TestBean(i));
+        }
+        return keyMapper;
+    }
+
+    private static MultiselectComboBox<String> createAttached(
+            List<String> items, int selected) {
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+        multiselectComboBox
+                .setValue(new HashSet<>(items.subList(0, selected)));
+        // the pending connector calls are not part of the component state
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        ui.getInternals().dumpPendingJavaScriptInvocations();
+        return multiselectComboBox;
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T deserialize(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes))) {
+            return (T) in.readObject();
+        }
+    }
+
+    private static class TestBean implements Serializable {
+        private final int id;
+        private final String description;
+
+        private TestBean(int id) {
+            this.id = id;
+            this.description = "Description of the item " + id
+                    + ", which is not needed to resolve its key";
+        }
+    }
+}
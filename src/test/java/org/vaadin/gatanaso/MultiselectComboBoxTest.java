@@ -1,25 +1,50 @@
 package org.vaadin.gatanaso;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.internal.PendingJavaScriptInvocation;
 import com.vaadin.flow.data.provider.DataProvider;
+import com.vaadin.flow.data.provider.DataProviderListener;
 import com.vaadin.flow.data.provider.ListDataProvider;
 import com.vaadin.flow.data.provider.Query;
+import com.vaadin.flow.server.VaadinSession;
 import com.vaadin.flow.shared.Registration;
 
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 
 /**
  * Tests for the {@link MultiselectComboBox}.
@@ -260,6 +285,74 @@ public class MultiselectComboBoxTest {
         multiselectComboBox.setPageSize(0);
     }
 
+    @Test
+    public void shouldSetClientSideFilterThreshold() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setPageSize(10);
+
+        assertThat(multiselectComboBox.getClientSideFilterThreshold(), is(10)); // defaults to page size
+
+        // when
+        multiselectComboBox.setItems(IntStream.range(0, 60)
+                .mapToObj(String::valueOf).collect(Collectors.toList()));
+
+        // then
+        assertThat(multiselectComboBox.getElement()
+                .getProperty("_clientSideFilter", true), is(false));
+
+        // when
+        multiselectComboBox.setClientSideFilterThreshold(100);
+
+        // then
+        assertThat(multiselectComboBox.getClientSideFilterThreshold(), is(100));
+        assertThat(multiselectComboBox.getElement()
+                .getProperty("_clientSideFilter", false), is(true));
+    }
+
+    @Test
+    public void shouldSetPrefetchPages() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+
+        assertThat(multiselectComboBox.getPrefetchPages(), is(0)); // default value
+        assertThat(multiselectComboBox.getMaxPrefetchedItems(), is(500)); // default value
+
+        // when
+        multiselectComboBox.setPrefetchPages(2);
+        multiselectComboBox.setMaxPrefetchedItems(200);
+
+        // then
+        assertThat(multiselectComboBox.getPrefetchPages(), is(2));
+        assertThat(multiselectComboBox.getMaxPrefetchedItems(), is(200));
+    }
+
+    @Test
+    public void shouldSetFilterDebounce() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+
+        assertThat(multiselectComboBox.getFilterDebounce(), is(500)); // default value
+        assertThat(multiselectComboBox.isAdaptiveFilterDebounce(), is(false)); // default value
+
+        // when
+        multiselectComboBox.setFilterDebounce(100);
+        multiselectComboBox.setAdaptiveFilterDebounce(true);
+
+        // then
+        assertThat(multiselectComboBox.getFilterDebounce(), is(100));
+        assertThat(multiselectComboBox.isAdaptiveFilterDebounce(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionWhenSettingNegativeFilterDebounce() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+
+        // when & then
+        multiselectComboBox.setFilterDebounce(-1);
+    }
+
     @Test
     public void shouldSetClearButtonVisible() {
         // given
@@ -354,6 +447,172 @@ public class MultiselectComboBoxTest {
         // then, expect exception
     }
 
+    @Test
+    public void shouldSetDataProviderWithoutSizeCallback() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+
+        // when
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> Stream
+                .of("Item 1", "Item 2").skip(offset).limit(limit));
+
+        // then
+        assertThat(multiselectComboBox.getDataProvider().fetch(new Query<>())
+                .collect(Collectors.toList()), hasSize(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotCountItemsOfDataProviderWithoutSizeCallback() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> Stream.empty(), null);
+
+        // when
+        multiselectComboBox.getDataProvider().size(new Query<>());
+
+        // then, expect exception
+    }
+
+    @Test
+    public void shouldNotCountItemsOfDataProviderWithoutSizeCallbackToDecideFiltering() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+
+        // when, counting the items would throw
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> Stream
+                .of("Item 1", "Item 2").skip(offset).limit(limit));
+
+        // then
+        assertThat(multiselectComboBox.getElement()
+                .getProperty("_clientSideFilter", true), is(false));
+    }
+
+    @Test
+    public void shouldNotFetchItemsSynchronouslyWithAsyncDataProvider() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        List<CompletableFuture<List<String>>> fetches = new ArrayList<>();
+        List<Integer> fetchedItemCounts = new ArrayList<>();
+        multiselectComboBox.setMetrics(new MultiselectComboBoxMetrics() {
+            @Override
+            public void itemsFetched(String componentId, long durationNanos,
+                    int itemCount) {
+                fetchedItemCounts.add(itemCount);
+            }
+        }, "async");
+
+        // when
+        multiselectComboBox.setAsyncDataProvider((filter, offset, limit) -> {
+            CompletableFuture<List<String>> fetch = new CompletableFuture<>();
+            fetches.add(fetch);
+            return fetch;
+        });
+        createUiWithLockedSession().add(multiselectComboBox);
+
+        // then
+        assertThat(fetches, hasSize(0));
+        assertThat(multiselectComboBox.getDataProvider().fetch(new Query<>())
+                .collect(Collectors.toList()), hasSize(0));
+
+        // when, the first request is superseded before it completes
+        multiselectComboBox.setRequestedRange(0, 50, "");
+        multiselectComboBox.setRequestedRange(0, 50, "Item");
+        fetches.get(1).complete(Arrays.asList("Item 1", "Item 2"));
+        fetches.get(0).complete(Arrays.asList("Stale"));
+
+        // then
+        assertThat(fetches, hasSize(2));
+        assertThat(fetchDeliveredItems(multiselectComboBox, "Item"),
+                is(Arrays.asList("Item 1", "Item 2")));
+        assertThat(fetchDeliveredItems(multiselectComboBox, ""), hasSize(0));
+        assertThat(fetchedItemCounts, is(Arrays.asList(2)));
+    }
+
+    @Test
+    public void shouldDropAsyncItemsCompletedWithoutSession() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        CompletableFuture<List<String>> fetch = new CompletableFuture<>();
+        List<Integer> fetchedItemCounts = new ArrayList<>();
+        multiselectComboBox.setMetrics(new MultiselectComboBoxMetrics() {
+            @Override
+            public void itemsFetched(String componentId, long durationNanos,
+                    int itemCount) {
+                fetchedItemCounts.add(itemCount);
+            }
+        }, "async");
+        multiselectComboBox
+                .setAsyncDataProvider((filter, offset, limit) -> fetch);
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.setRequestedRange(0, 50, "Item");
+
+        // when
+        fetch.complete(Arrays.asList("Item 1", "Item 2"));
+
+        // then
+        assertThat(fetchDeliveredItems(multiselectComboBox, "Item"),
+                hasSize(0));
+        assertThat(fetchedItemCounts, hasSize(0));
+    }
+
+    @Test
+    public void shouldInterruptFetchWhenItsFutureIsCancelled() throws Exception {
+        // given
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<List<String>> future = MultiselectComboBox
+                    .fetchInterruptibly(() -> {
+                        started.countDown();
+                        try {
+                            Thread.sleep(10_000);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                        return Collections.emptyList();
+                    }, executor);
+            started.await(5, TimeUnit.SECONDS);
+
+            // when
+            future.cancel(true);
+
+            // then
+            assertThat(interrupted.await(5, TimeUnit.SECONDS), is(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldReportMetricsWithComponentId() {
+        // given
+        List<String> events = new ArrayList<>();
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setMetrics(new MultiselectComboBoxMetrics() {
+            @Override
+            public void itemsCounted(String componentId, long durationNanos, int size) {
+                events.add(componentId + " counted " + size);
+            }
+
+            @Override
+            public void selectionChanged(String componentId, int selectionSize) {
+                events.add(componentId + " selected " + selectionSize);
+            }
+        }, "users");
+        multiselectComboBox.setItems("Item 1", "Item 2", "Item 3");
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+
+        // when
+        multiselectComboBox.setValue(new HashSet<>(Arrays.asList("Item 1", "Item 2")));
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+
+        // then
+        assertThat(events, hasItem("users selected 2"));
+        assertThat(events, hasItem("users counted 3"));
+    }
+
     @Test
     public void shouldNotifyValueChangeListener() {
         // given
@@ -436,6 +695,1069 @@ public class MultiselectComboBoxTest {
         assertThat(multiselectComboBox.isAllowCustomValues(), is(false));
     }
 
+    @Test
+    public void shouldOnlyHashChangedItemsWhenSelectionChangesOnClient() {
+        // given
+        int smallSelectionHashes = countHashesForSingleItemChanges(10);
+
+        // when
+        int largeSelectionHashes = countHashesForSingleItemChanges(1000);
+
+        // then
+        assertThat(largeSelectionHashes, is(smallSelectionHashes));
+    }
+
+    @Test
+    public void shouldOnlyHashChangedItemsWhenSelectionChangesOnServer() {
+        // given
+        int smallSelectionHashes = countHashesForServerSideSingleItemChanges(10);
+
+        // when
+        int largeSelectionHashes = countHashesForServerSideSingleItemChanges(1000);
+
+        // then
+        assertThat(largeSelectionHashes, is(smallSelectionHashes));
+    }
+
+    @Test
+    public void shouldKeepPreviousValuesWhenSelectionChanges() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+        List<Set<TestItem>> oldValues = new ArrayList<>();
+        multiselectComboBox.addValueChangeListener(
+                e -> oldValues.add(e.getOldValue()));
+
+        // when
+        multiselectComboBox.updateSelectedItems(toKeys(items.subList(2, 3)),
+                Json.createArray());
+        multiselectComboBox.deselect(items.get(0));
+        multiselectComboBox.updateSelectedItems(toKeys(items.subList(3, 5)),
+                toKeys(items.subList(1, 2)));
+
+        // then
+        assertThat(oldValues, is(Arrays.asList(
+                new HashSet<>(items.subList(0, 2)),
+                new HashSet<>(items.subList(0, 3)),
+                new HashSet<>(items.subList(1, 3)))));
+        assertThat(multiselectComboBox.getValue(),
+                is(new HashSet<>(items.subList(2, 5))));
+    }
+
+    @Test
+    public void shouldReuseValueWhenClientSelectionIsUnchanged() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setUniqueKeyDataGenerator(item -> item.id);
+        multiselectComboBox.setItems(items);
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.setValue(new HashSet<>(items));
+
+        Set<TestItem> value = multiselectComboBox.getValue();
+        AtomicInteger valueChanges = new AtomicInteger();
+        multiselectComboBox.addValueChangeListener(
+                e -> valueChanges.incrementAndGet());
+
+        // when
+        multiselectComboBox.setSelectedItems(toPresentation(items));
+
+        // then
+        Assert.assertSame(value, multiselectComboBox.getValue());
+        assertThat(valueChanges.get(), is(0));
+    }
+
+    @Test
+    public void shouldApplyKeysAddedAndRemovedByClient() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+
+        // when
+        multiselectComboBox.updateSelectedItems(toKeys(items.subList(2, 4)),
+                toKeys(items.subList(0, 1)));
+
+        // then
+        assertThat(multiselectComboBox.getValue(), is(new HashSet<>(
+                Arrays.asList(items.get(1), items.get(2), items.get(3)))));
+    }
+
+    @Test
+    public void shouldSendAddedItemsAndRemovedKeysToClient() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        UI ui = multiselectComboBox.getUI().get();
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+        sentConnectorCalls(ui);
+
+        // when
+        multiselectComboBox.setValue(new HashSet<>(items.subList(1, 3)));
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        List<PendingJavaScriptInvocation> invocations = ui.getInternals()
+                .dumpPendingJavaScriptInvocations().stream()
+                .filter(invocation -> invocation.getInvocation()
+                        .getExpression().contains("setSelectedItems")
+                        || invocation.getInvocation().getExpression()
+                                .contains("updateSelectedItems"))
+                .collect(Collectors.toList());
+
+        // then, only the delta is sent
+        assertThat(invocations, hasSize(1));
+        assertThat(invocations.get(0).getInvocation().getExpression()
+                .contains("updateSelectedItems"), is(true));
+        List<Object> parameters = invocations.get(0).getInvocation()
+                .getParameters();
+        assertThat(((JsonArray) parameters.get(1)).length(), is(1));
+        assertThat(((JsonArray) parameters.get(2)).toJson(), is("[\"0\"]"));
+    }
+
+    @Test
+    public void shouldResyncClientWhenItSendsUnknownKey() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        UI ui = multiselectComboBox.getUI().get();
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+        sentConnectorCalls(ui);
+        JsonArray unknownKey = Json.createArray();
+        unknownKey.set(0, "unknown");
+
+        // when
+        multiselectComboBox.updateSelectedItems(unknownKey, Json.createArray());
+
+        // then
+        assertThat(multiselectComboBox.getValue(), hasSize(2));
+        assertThat(sentConnectorCalls(ui), hasItem("setSelectedItems"));
+    }
+
+    @Test
+    public void shouldSelectItemAfterItsKeyWasEvicted() {
+        // given, the client loaded more pages than keys are retained for
+        List<TestItem> items = createTestItems(6000);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        UI ui = multiselectComboBox.getUI().get();
+        for (int start = 0; start < items.size(); start += 500) {
+            multiselectComboBox.setRequestedRange(start, 500, "");
+            List<List<Object>> updates = sentUpdates(ui);
+            multiselectComboBox.confirmUpdate(((Number) updates
+                    .get(updates.size() - 1).get(4)).intValue());
+        }
+        sentConnectorCalls(ui);
+
+        // when, the item of an evicted key is selected on a loaded page
+        multiselectComboBox.updateSelectedItems(toKeys(items.subList(0, 1)),
+                Json.createArray());
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(Collections.singleton(items.get(0))));
+        assertThat(sentConnectorCalls(ui), not(hasItem("setSelectedItems")));
+    }
+
+    @Test
+    public void shouldResyncClientWhenReattached() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        UI ui = multiselectComboBox.getUI().get();
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+        ui.remove(multiselectComboBox);
+        sentConnectorCalls(ui);
+
+        // when
+        ui.add(multiselectComboBox);
+
+        // then
+        assertThat(sentConnectorCalls(ui), hasItem("setSelectedItems"));
+
+        // when, the client reports a change relative to the resent selection
+        multiselectComboBox.updateSelectedItems(Json.createArray(),
+                toKeys(items.subList(0, 1)));
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(Collections.singleton(items.get(1))));
+    }
+
+    @Test
+    public void shouldTakeFullSelectionFromClientWithoutKnownSelection() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        multiselectComboBox.setValue(new HashSet<>(items.subList(0, 2)));
+
+        // when
+        multiselectComboBox.setSelectedItems(toPresentation(items.subList(3, 5)));
+        multiselectComboBox.updateSelectedItems(Json.createArray(),
+                toKeys(items.subList(3, 4)));
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(Collections.singleton(items.get(4))));
+    }
+
+    @Test
+    public void shouldResyncClientWhenListenerChangesClientSelection() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setUniqueKeyDataGenerator(item -> item.id);
+        multiselectComboBox.setItems(items);
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+        multiselectComboBox.setValue(new HashSet<>(items));
+        sentConnectorCalls(ui);
+        multiselectComboBox.addValueChangeListener(e -> {
+            if (e.isFromClient()) {
+                multiselectComboBox.setValue(new HashSet<>(items));
+            }
+        });
+
+        // when
+        multiselectComboBox.updateSelectedItems(Json.createArray(),
+                toKeys(items.subList(0, 1)));
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+
+        // then
+        assertThat(multiselectComboBox.getValue(), hasSize(5));
+        assertThat(sentConnectorCalls(ui), hasItem("setSelectedItems"));
+    }
+
+    @Test
+    public void shouldGenerateLabelsOnceUntilLabelGeneratorChanges() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        AtomicInteger generatedLabels = new AtomicInteger();
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        multiselectComboBox.setItemLabelGenerator(item -> {
+            generatedLabels.incrementAndGet();
+            return "item " + item.id;
+        });
+        new UI().add(multiselectComboBox);
+
+        // when
+        multiselectComboBox.setValue(new HashSet<>(items));
+        multiselectComboBox.clear();
+        multiselectComboBox.setValue(new HashSet<>(items));
+
+        // then
+        assertThat(generatedLabels.get(), is(5));
+
+        // when
+        multiselectComboBox.setItemLabelGenerator(item -> {
+            generatedLabels.incrementAndGet();
+            return "label " + item.id;
+        });
+
+        // then
+        assertThat(generatedLabels.get(), is(10));
+    }
+
+    @Test
+    public void shouldKeepLabelsOfSelectionsLargerThanItemCacheCached() {
+        // given
+        List<TestItem> items = createTestItems(2000);
+        AtomicInteger generatedLabels = new AtomicInteger();
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        multiselectComboBox.setItemLabelGenerator(item -> {
+            generatedLabels.incrementAndGet();
+            return "item " + item.id;
+        });
+        new UI().add(multiselectComboBox);
+
+        // when
+        multiselectComboBox.setValue(new HashSet<>(items));
+        multiselectComboBox.clear();
+        multiselectComboBox.setValue(new HashSet<>(items));
+
+        // then
+        assertThat(generatedLabels.get(), is(2000));
+    }
+
+    @Test
+    public void shouldFilterByCachedLabelsOfSelectedItems() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        AtomicInteger generatedLabels = new AtomicInteger();
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        multiselectComboBox.setItemLabelGenerator(item -> {
+            generatedLabels.incrementAndGet();
+            return "item " + item.id;
+        });
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.setValue(new HashSet<>(items));
+
+        // when
+        int matchingItems = multiselectComboBox.selectAllMatching("item").size();
+
+        // then
+        assertThat(matchingItems, is(5));
+        assertThat(generatedLabels.get(), is(5));
+    }
+
+    @Test
+    public void shouldFilterByNewLabelsWhenLabelGeneratorChanges() {
+        // given
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(createTestItems(10));
+        multiselectComboBox.setItemLabelGenerator(item -> "Old " + item.id);
+        assertThat(multiselectComboBox.selectAllMatching("old 1").size(), is(1));
+
+        // when
+        multiselectComboBox.setItemLabelGenerator(item -> "New " + item.id);
+
+        // then
+        assertThat(multiselectComboBox.selectAllMatching("old 1").size(), is(0));
+        assertThat(multiselectComboBox.selectAllMatching("new 1").size(), is(1));
+    }
+
+    @Test
+    public void shouldFilterByLabelsNormalizedForNewLocale() {
+        // given
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(createTestItems(10));
+        multiselectComboBox.setItemLabelGenerator(item -> "ITEM " + item.id);
+        UI ui = new UI();
+        ui.setLocale(Locale.ENGLISH);
+        ui.add(multiselectComboBox);
+        assertThat(multiselectComboBox.selectAllMatching("item").size(), is(10));
+
+        // when, the dotted and dotless i differ in Turkish
+        ui.setLocale(new Locale("tr"));
+
+        // then
+        assertThat(multiselectComboBox.selectAllMatching("item").size(), is(0));
+    }
+
+    @Test
+    public void shouldFilterByRefreshedLabels() {
+        // given
+        AtomicReference<String> prefix = new AtomicReference<>("Old ");
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(createTestItems(10));
+        multiselectComboBox.setItemLabelGenerator(item -> prefix.get() + item.id);
+        new UI().add(multiselectComboBox);
+        assertThat(multiselectComboBox.selectAllMatching("old 1").size(), is(1));
+
+        // when
+        prefix.set("New ");
+        multiselectComboBox.getDataProvider().refreshAll();
+
+        // then
+        assertThat(multiselectComboBox.selectAllMatching("new 1").size(), is(1));
+    }
+
+    @Test
+    public void shouldMatchNewLabelsWithSelectionMadeBeforeLabelsChange() {
+        // given
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(createTestItems(10));
+        multiselectComboBox.setItemLabelGenerator(item -> "Old " + item.id);
+        MatchingItemsSelection<TestItem> selection = multiselectComboBox
+                .selectAllMatching("new 1");
+        assertThat(selection.size(), is(0));
+
+        // when
+        multiselectComboBox.setItemLabelGenerator(item -> "New " + item.id);
+
+        // then
+        assertThat(selection.size(), is(1));
+    }
+
+    @Test
+    public void shouldChangeValueWhenSelectingSameFilterTextAfterLabelsChange() {
+        // given
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(createTestItems(10));
+        multiselectComboBox.setItemLabelGenerator(item -> "Old " + item.id);
+        multiselectComboBox.selectAllMatching("1");
+        AtomicInteger valueChanges = new AtomicInteger();
+        multiselectComboBox.addValueChangeListener(e -> valueChanges.incrementAndGet());
+
+        // when
+        multiselectComboBox.selectAllMatching("1");
+        multiselectComboBox.setItemLabelGenerator(item -> "New " + item.id);
+        multiselectComboBox.selectAllMatching("1");
+
+        // then
+        assertThat(valueChanges.get(), is(1));
+    }
+
+    @Test
+    public void shouldSelectAllMatchingItemsLazily() {
+        // given
+        List<String> items = IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        AtomicReference<Set<String>> selected = new AtomicReference<>();
+        multiselectComboBox.addSelectionListener(
+                e -> selected.set(e.getAllSelectedItems()));
+
+        // when
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("item 9");
+        multiselectComboBox.deselect("Item 9");
+
+        // then
+        assertThat(selection.size(), is(111));
+        assertThat(selected.get() instanceof MatchingItemsSelection, is(true));
+        assertThat(selected.get().size(), is(110));
+        assertThat(selected.get().contains("Item 9"), is(false));
+        assertThat(((MatchingItemsSelection<String>) selected.get())
+                .fetch(0, 2).collect(Collectors.toList()),
+                is(Arrays.asList("Item 90", "Item 91")));
+    }
+
+    @Test
+    public void shouldIgnoreExcludedItemsThatDoNotMatch() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList()));
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("item 9");
+
+        // when
+        multiselectComboBox.deselect("Item 1");
+
+        // then
+        assertThat(multiselectComboBox.getValue(), is(selection));
+        assertThat(multiselectComboBox.getValue().size(), is(111));
+        assertThat(multiselectComboBox.getValue().contains("Item 1"),
+                is(false));
+        assertThat(multiselectComboBox.getValue().contains("Item 95"),
+                is(true));
+    }
+
+    @Test
+    public void shouldIncludeItemsOutsideOfMatchingSelection() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList()));
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("item 9");
+
+        // when
+        multiselectComboBox.select("Item 1");
+
+        // then, only the included item is kept
+        assertThat(multiselectComboBox.getValue() instanceof MatchingItemsSelection,
+                is(true));
+        MatchingItemsSelection<String> value = (MatchingItemsSelection<String>) multiselectComboBox
+                .getValue();
+        assertThat(value.getIncludedItems(), hasSize(1));
+        assertThat(value, hasSize(112));
+        assertThat(value.contains("Item 1"), is(true));
+        assertThat(value.fetch(111, 1).collect(Collectors.toList()),
+                is(Collections.singletonList("Item 1")));
+        assertThat(selection.allMatch(Collections.singleton("Item 1")),
+                is(false));
+
+        // when
+        multiselectComboBox.deselect("Item 1");
+
+        // then
+        assertThat(((MatchingItemsSelection<String>) multiselectComboBox
+                .getValue()).getIncludedItems(), hasSize(0));
+        assertThat(multiselectComboBox.getValue().size(), is(111));
+    }
+
+    @Test
+    public void shouldKeepMatchingItemsIncludedOnlyOnce() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList()));
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("item 9");
+
+        // when
+        MatchingItemsSelection<String> included = selection
+                .withIncluded(Arrays.asList("Item 9", "Item 95"));
+
+        // then
+        assertThat(included, sameInstance(selection));
+    }
+
+    @Test
+    public void shouldNotQueryBackendWhenExcludingItemsFromMatchingSelection() {
+        // given
+        List<String> items = IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        AtomicInteger queries = new AtomicInteger();
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setDataProvider(DataProvider.fromFilteringCallbacks(
+                query -> {
+                    queries.incrementAndGet();
+                    return items.stream()
+                            .filter(item -> item.contains(query.getFilter().orElse("")))
+                            .skip(query.getOffset()).limit(query.getLimit());
+                }, query -> {
+                    queries.incrementAndGet();
+                    return (int) items.stream()
+                            .filter(item -> item.contains(query.getFilter().orElse("")))
+                            .count();
+                }));
+        multiselectComboBox.selectAllMatching("Item 9");
+        queries.set(0);
+
+        // when
+        multiselectComboBox.deselect("Item 95");
+
+        // then
+        assertThat(queries.get(), is(0));
+        assertThat(((MatchingItemsSelection<String>) multiselectComboBox
+                .getValue()).getExcludedIds(), is(Collections.singleton("Item 95")));
+        assertThat(multiselectComboBox.getValue().size(), is(110));
+    }
+
+    @Test
+    public void shouldCheckMatchingItemsWithMatchingIdsQuery() {
+        // given
+        List<String> items = IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> items
+                .stream().filter(item -> item.contains(filter)).skip(offset)
+                .limit(limit));
+        multiselectComboBox.setMatchingIdsQuery((filterText, ids) -> ids
+                .stream().filter(id -> ((String) id).contains(filterText))
+                .collect(Collectors.toSet()));
+
+        // when
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("Item 9");
+        multiselectComboBox.deselect("Item 1");
+
+        // then
+        assertThat(multiselectComboBox.getValue(), is(selection));
+        assertThat(selection.contains("Item 95"), is(true));
+        assertThat(selection.contains("Item 1"), is(false));
+        assertThat(selection.allMatch(Collections.singleton("Item 1")),
+                is(false));
+    }
+
+    @Test
+    public void shouldCompareMatchingSelectionToSetOfSameItems() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList()));
+
+        // when
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("item 9");
+        Set<String> items = new HashSet<>(selection);
+
+        // then
+        assertThat(selection.equals(items), is(true));
+        assertThat(items.equals(selection), is(true));
+        assertThat(selection.hashCode(), is(items.hashCode()));
+    }
+
+    @Test
+    public void shouldSummarizeMatchingSelectionWithoutSizeCallback() {
+        // given
+        List<String> items = IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> items
+                .stream().filter(item -> item.contains(filter)).skip(offset)
+                .limit(limit));
+        new UI().add(multiselectComboBox);
+
+        // when
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("Item 9");
+
+        // then, the items are counted by fetching them
+        assertThat(multiselectComboBox.getValue(), is(selection));
+        assertThat(selection.fetch(0, 2).collect(Collectors.toList()),
+                is(Arrays.asList("Item 9", "Item 90")));
+        assertThat(selection.size(), is(111));
+    }
+
+    @Test
+    public void shouldSwitchBetweenMatchingAndConcreteSelectionWithoutSizeCallback() {
+        // given
+        List<String> items = IntStream.range(0, 1000)
+                .mapToObj(i -> "Item " + i).collect(Collectors.toList());
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setDataProvider((filter, offset, limit) -> items
+                .stream().filter(item -> item.contains(filter)).skip(offset)
+                .limit(limit));
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.select("Item 1");
+        List<Set<String>> values = new ArrayList<>();
+        multiselectComboBox.addValueChangeListener(e -> values.add(e.getValue()));
+
+        // when
+        MatchingItemsSelection<String> selection = multiselectComboBox
+                .selectAllMatching("Item 9");
+        multiselectComboBox.setValue(Collections.singleton("Item 2"));
+
+        // then
+        assertThat(values, hasSize(2));
+        assertThat(values.get(0), is(selection));
+        assertThat(multiselectComboBox.getValue(),
+                is(Collections.singleton("Item 2")));
+    }
+
+    @Test
+    public void shouldNotQueryDataProviderUntilActivated() {
+        // given
+        AtomicInteger queries = new AtomicInteger();
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setLazyActivation(true);
+        multiselectComboBox.setDataProvider(DataProvider.fromFilteringCallbacks(
+                query -> {
+                    queries.incrementAndGet();
+                    return Stream.of("Item 1", "Item 2").skip(query.getOffset())
+                            .limit(query.getLimit());
+                }, query -> {
+                    queries.incrementAndGet();
+                    return 2;
+                }));
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+
+        // when
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+
+        // then
+        assertThat(queries.get(), is(0));
+
+        // when
+        multiselectComboBox.setLazyActivation(false);
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+
+        // then
+        assertThat(queries.get() > 0, is(true));
+    }
+
+    @Test
+    public void shouldFetchValueSetByIdsOnceWhenNeeded() {
+        // given
+        List<TestItem> items = createTestItems(10);
+        AtomicInteger fetches = new AtomicInteger();
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+
+        // when
+        multiselectComboBox.setValueByIds(Arrays.asList(2, 4), ids -> {
+            fetches.incrementAndGet();
+            return items.stream().filter(item -> ids.contains(item.id))
+                    .collect(Collectors.toList());
+        });
+        multiselectComboBox.setItems(items);
+
+        // then
+        assertThat(fetches.get(), is(0));
+        assertThat(multiselectComboBox.getValue(),
+                is(new HashSet<>(Arrays.asList(items.get(2), items.get(4)))));
+        assertThat(multiselectComboBox.getValue(), hasSize(2));
+        assertThat(fetches.get(), is(1));
+    }
+
+    @Test
+    public void shouldFetchValueSetByIdsWhenCheckingEmptiness() {
+        // given
+        List<TestItem> items = createTestItems(10);
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        List<Set<TestItem>> values = new ArrayList<>();
+        multiselectComboBox.addValueChangeListener(
+                e -> values.add(multiselectComboBox.getValue()));
+
+        // when
+        multiselectComboBox.setValueByIds(Arrays.asList(2, 4),
+                ids -> Arrays.asList(items.get(2), items.get(4)));
+
+        // then
+        assertThat(multiselectComboBox.isEmpty(), is(false));
+        assertThat(values, is(Collections.singletonList(
+                new HashSet<>(Arrays.asList(items.get(2), items.get(4))))));
+    }
+
+    @Test
+    public void shouldNotFetchValueSetByIdsAgainFromFetchCallback() {
+        // given
+        List<TestItem> items = createTestItems(10);
+        AtomicInteger fetches = new AtomicInteger();
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems(items);
+        multiselectComboBox.setValue(Collections.singleton(items.get(1)));
+
+        // when
+        multiselectComboBox.setValueByIds(Arrays.asList(2, 4), ids -> {
+            fetches.incrementAndGet();
+            assertThat(multiselectComboBox.getValue(),
+                    is(Collections.singleton(items.get(1))));
+            return Arrays.asList(items.get(2), items.get(4));
+        });
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(new HashSet<>(Arrays.asList(items.get(2), items.get(4)))));
+        assertThat(fetches.get(), is(1));
+    }
+
+    @Test
+    public void shouldSendValueSetByIdsWhenAttachedBeforeItemsAreSet() {
+        // given
+        List<TestItem> items = createTestItems(10);
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setValueByIds(Arrays.asList(2, 4),
+                ids -> Arrays.asList(items.get(2), items.get(4)));
+        UI ui = new UI();
+
+        // when
+        ui.add(multiselectComboBox);
+        multiselectComboBox.setItems(items);
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(new HashSet<>(Arrays.asList(items.get(2), items.get(4)))));
+        assertThat(sentConnectorCalls(ui), hasItem("setSelectedItems"));
+    }
+
+    @Test
+    public void shouldKeepValueSetByIdsWhenFetchedBeforeItemsAreSet() {
+        // given
+        List<TestItem> items = createTestItems(10);
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setValueByIds(Arrays.asList(2, 4),
+                ids -> Arrays.asList(items.get(2), items.get(4)));
+        assertThat(multiselectComboBox.getValue(), hasSize(2));
+
+        // when
+        multiselectComboBox.setItems(items);
+
+        // then
+        assertThat(multiselectComboBox.getValue(),
+                is(new HashSet<>(Arrays.asList(items.get(2), items.get(4)))));
+
+        // when
+        multiselectComboBox.setItems(items);
+
+        // then
+        assertThat(multiselectComboBox.getValue(), hasSize(0));
+    }
+
+    @Test
+    public void shouldListenToDataProviderOnlyWhileAttached() {
+        // given
+        AtomicInteger listeners = new AtomicInteger();
+        ListDataProvider<TestItem> dataProvider = new ListDataProvider<TestItem>(
+                createTestItems(10)) {
+            @Override
+            public Registration addDataProviderListener(
+                    DataProviderListener<TestItem> listener) {
+                listeners.incrementAndGet();
+                Registration registration = super.addDataProviderListener(
+                        listener);
+                return () -> {
+                    listeners.decrementAndGet();
+                    registration.remove();
+                };
+            }
+        };
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        UI ui = new UI();
+
+        // when
+        multiselectComboBox.setDataProvider(dataProvider);
+        ui.add(multiselectComboBox);
+        multiselectComboBox.setDataProvider(dataProvider);
+
+        // then
+        assertThat(listeners.get(), is(1));
+
+        // when
+        ui.remove(multiselectComboBox);
+
+        // then
+        assertThat(listeners.get(), is(0));
+
+        // when
+        ui.add(multiselectComboBox);
+
+        // then
+        assertThat(listeners.get(), is(1));
+    }
+
+    @Test
+    public void shouldSendDataUpdateInSingleConnectorCall() {
+        // given
+        List<TestItem> items = createTestItems(5);
+        MultiselectComboBox<TestItem> multiselectComboBox = createAttached(items);
+        UI ui = multiselectComboBox.getUI().get();
+        sentConnectorCalls(ui);
+
+        // when
+        multiselectComboBox.setRequestedRange(0, 50, "");
+        List<List<Object>> updates = sentUpdates(ui);
+
+        // then, the size and the items are sent in the call of the update
+        assertThat(updates, hasSize(1));
+        List<Object> parameters = updates.get(0);
+        assertThat(((Number) parameters.get(1)).intValue(), is(5));
+        JsonArray slices = (JsonArray) parameters.get(2);
+        assertThat(slices.length(), is(1));
+        assertThat((int) slices.getArray(0).getNumber(0), is(0));
+        assertThat(slices.getArray(0).getArray(1).length(), is(5));
+    }
+
+    @Test
+    public void shouldSendFilterWithDataUpdate() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItems("Item 1", "Item 2", "Other");
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+        sentConnectorCalls(ui);
+
+        // when
+        multiselectComboBox.setRequestedRange(0, 50, "item");
+        List<List<Object>> updates = sentUpdates(ui);
+
+        // then
+        assertThat(updates, hasSize(1));
+        List<Object> parameters = updates.get(0);
+        assertThat(((Number) parameters.get(1)).intValue(), is(2));
+        assertThat(parameters.get(3), is("item"));
+        assertThat(((JsonArray) parameters.get(2)).getArray(0).getArray(1)
+                .length(), is(2));
+    }
+
+    @Test
+    public void shouldNormalizeLabelsOfEqualItemsAgainWhenItemsAreSet() {
+        // given
+        Map<Integer, String> labels = new HashMap<>();
+        IntStream.range(0, 10).forEach(i -> labels.put(i, "Old " + i));
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setItemLabelGenerator(item -> labels.get(item.id));
+        multiselectComboBox.setItems(createTestItems(10));
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+        multiselectComboBox.setRequestedRange(0, 50, "old");
+        sentUpdates(ui);
+
+        // when, equal items with other labels are set
+        IntStream.range(0, 10).forEach(i -> labels.put(i, "New " + i));
+        multiselectComboBox.setItems(createTestItems(10));
+        sentUpdates(ui);
+        multiselectComboBox.setRequestedRange(0, 50, "new");
+        List<List<Object>> updates = sentUpdates(ui);
+
+        // then
+        List<Object> parameters = updates.get(updates.size() - 1);
+        assertThat(((Number) parameters.get(1)).intValue(), is(10));
+    }
+
+    @Test
+    public void shouldReportUpdateSizeInUtf8Bytes() {
+        // given
+        MultiselectComboBox<String> multiselectComboBox = new MultiselectComboBox<>();
+        List<Integer> sentBytes = new ArrayList<>();
+        multiselectComboBox.setMetrics(new MultiselectComboBoxMetrics() {
+            @Override
+            public void updateSent(String componentId, int itemCount,
+                    int bytes) {
+                sentBytes.add(bytes);
+            }
+        }, "utf8");
+        multiselectComboBox.setItems("\u00c4pfel", "\u00d6l", "\u20ac");
+        UI ui = new UI();
+        ui.add(multiselectComboBox);
+        sentUpdates(ui);
+        sentBytes.clear();
+
+        // when
+        multiselectComboBox.setRequestedRange(0, 50, "");
+        List<List<Object>> updates = sentUpdates(ui);
+
+        // then
+        String json = ((JsonArray) updates.get(0).get(2)).toJson();
+        assertThat(sentBytes, is(Arrays.asList(
+                json.getBytes(StandardCharsets.UTF_8).length)));
+        assertThat(sentBytes.get(0) > json.length(), is(true));
+    }
+
+    private static int countHashesForSingleItemChanges(int selectionSize) {
+        AtomicInteger hashes = new AtomicInteger();
+        List<TestItem> items = IntStream.range(0, selectionSize + 1)
+                .mapToObj(id -> new HashCountingTestItem(id, hashes))
+                .collect(Collectors.toList());
+
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setUniqueKeyDataGenerator(item -> item.id);
+        multiselectComboBox.setItems(items);
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.setValue(new HashSet<>(items));
+        hashes.set(0);
+
+        // client deselects the last item
+        JsonArray lastKey = toKeys(items.subList(selectionSize, selectionSize + 1));
+        multiselectComboBox.updateSelectedItems(Json.createArray(), lastKey);
+        assertThat(multiselectComboBox.getValue(), hasSize(selectionSize));
+
+        // client selects it again
+        multiselectComboBox.updateSelectedItems(lastKey, Json.createArray());
+        assertThat(multiselectComboBox.getValue(), hasSize(selectionSize + 1));
+
+        return hashes.get();
+    }
+
+    private static int countHashesForServerSideSingleItemChanges(
+            int selectionSize) {
+        AtomicInteger hashes = new AtomicInteger();
+        List<TestItem> items = IntStream.range(0, selectionSize + 1)
+                .mapToObj(id -> new HashCountingTestItem(id, hashes))
+                .collect(Collectors.toList());
+
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setUniqueKeyDataGenerator(item -> item.id);
+        multiselectComboBox.setItems(items);
+        new UI().add(multiselectComboBox);
+        multiselectComboBox.setValue(new HashSet<>(items));
+        hashes.set(0);
+
+        multiselectComboBox.deselect(items.get(selectionSize));
+        assertThat(multiselectComboBox.getValue(), hasSize(selectionSize));
+
+        multiselectComboBox.select(items.get(selectionSize));
+        assertThat(multiselectComboBox.getValue(), hasSize(selectionSize + 1));
+
+        return hashes.get();
+    }
+
+    private static MultiselectComboBox<TestItem> createAttached(
+            List<TestItem> items) {
+        MultiselectComboBox<TestItem> multiselectComboBox = new MultiselectComboBox<>();
+        multiselectComboBox.setUniqueKeyDataGenerator(item -> item.id);
+        multiselectComboBox.setItems(items);
+        new UI().add(multiselectComboBox);
+        return multiselectComboBox;
+    }
+
+    /**
+     * Gets the names of the connector functions called since the last call.
+     */
+    private static List<String> sentConnectorCalls(UI ui) {
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        return ui.getInternals().dumpPendingJavaScriptInvocations().stream()
+                .map(invocation -> invocation.getInvocation().getExpression())
+                .filter(expression -> expression.contains("$connector."))
+                .map(expression -> expression
+                        .replaceAll(".*\\$connector\\.(\\w+).*", "$1"))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the parameters of the data updates sent since the last call.
+     */
+    private static List<List<Object>> sentUpdates(UI ui) {
+        ui.getInternals().getStateTree().runExecutionsBeforeClientResponse();
+        return ui.getInternals().dumpPendingJavaScriptInvocations().stream()
+                .map(PendingJavaScriptInvocation::getInvocation)
+                .filter(invocation -> invocation.getExpression()
+                        .contains("$connector.update("))
+                .map(invocation -> invocation.getParameters())
+                .collect(Collectors.toList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> fetchDeliveredItems(
+            MultiselectComboBox<String> multiselectComboBox, String filter) {
+        DataProvider<String, String> dataProvider = (DataProvider<String, String>) multiselectComboBox
+                .getDataProvider();
+        return dataProvider
+                .fetch(new Query<>(0, 50, Collections.emptyList(), null, filter))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates a UI of a session that is always locked by the current thread.
+     */
+    private static UI createUiWithLockedSession() {
+        UI ui = new UI();
+        ui.getInternals().setSession(new VaadinSession(null) {
+            @Override
+            public boolean hasLock() {
+                return true;
+            }
+        });
+        return ui;
+    }
+
+    private static List<TestItem> createTestItems(int count) {
+        return IntStream.range(0, count).mapToObj(TestItem::new)
+                .collect(Collectors.toList());
+    }
+
+    private static JsonArray toPresentation(List<TestItem> items) {
+        JsonArray presentation = Json.createArray();
+        for (TestItem item : items) {
+            JsonObject jsonObject = Json.createObject();
+            jsonObject.put(MultiselectComboBox.ITEM_VALUE_PATH, String.valueOf(item.id));
+            presentation.set(presentation.length(), jsonObject);
+        }
+        return presentation;
+    }
+
+    private static JsonArray toKeys(List<TestItem> items) {
+        JsonArray keys = Json.createArray();
+        for (TestItem item : items) {
+            keys.set(keys.length(), String.valueOf(item.id));
+        }
+        return keys;
+    }
+
+    private static class TestItem {
+        private final int id;
+
+        private TestItem(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestItem && ((TestItem) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    /**
+     * Item counting how often it is hashed, which happens for every lookup
+     * of the item in a hash based collection.
+     */
+    private static class HashCountingTestItem extends TestItem {
+        private final AtomicInteger hashes;
+
+        private HashCountingTestItem(int id, AtomicInteger hashes) {
+            super(id);
+            this.hashes = hashes;
+        }
+
+        @Override
+        public int hashCode() {
+            hashes.incrementAndGet();
+            return super.hashCode();
+        }
+    }
+
     private static class TestMultiselectComboBox<T> extends MultiselectComboBox<T> {
         private List<T> items;
 
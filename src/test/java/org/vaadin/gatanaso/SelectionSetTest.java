@@ -0,0 +1,151 @@
+package org.vaadin.gatanaso;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Tests for the {@link SelectionSet}.
+ */
+public class SelectionSetTest {
+
+    @Test
+    public void shouldKeepItemsOfSetsDerivedFrom() {
+        // given
+        SelectionSet<Integer> set = SelectionSet.of(IntStream.range(0, 1000)
+                .boxed().collect(Collectors.toSet()));
+
+        // when
+        SelectionSet<Integer> derived = set.with(Arrays.asList(1000, 1001),
+                Arrays.asList(0, 1));
+
+        // then
+        assertThat(set.size(), is(1000));
+        assertThat(set.contains(0), is(true));
+        assertThat(set.contains(1000), is(false));
+        assertThat(derived.size(), is(1000));
+        assertThat(derived.contains(0), is(false));
+        assertThat(derived.contains(1000), is(true));
+        assertThat(derived, is(IntStream.range(2, 1002).boxed()
+                .collect(Collectors.toSet())));
+    }
+
+    @Test
+    public void shouldReturnSameSetIfNothingChanges() {
+        // given
+        SelectionSet<Integer> set = SelectionSet.of(Arrays.asList(1, 2));
+
+        // when
+        SelectionSet<Integer> derived = set.with(Collections.singleton(1),
+                Collections.singleton(3));
+
+        // then
+        assertThat(derived, sameInstance(set));
+    }
+
+    @Test
+    public void shouldRemoveItemsThatAreAlsoAdded() {
+        // given
+        SelectionSet<Integer> set = SelectionSet.of(Arrays.asList(1, 2));
+
+        // when
+        SelectionSet<Integer> derived = set.with(Arrays.asList(2, 3),
+                Collections.singleton(2));
+
+        // then
+        assertThat(derived, is(new HashSet<>(Arrays.asList(1, 3))));
+    }
+
+    @Test
+    public void shouldMatchHashSetForItemsWithCollidingHashes() {
+        // given
+        Random random = new Random(42);
+        SelectionSet<CollidingItem> set = SelectionSet.empty();
+        Set<CollidingItem> expected = new HashSet<>();
+
+        for (int i = 0; i < 2000; i++) {
+            // when
+            CollidingItem item = new CollidingItem(random.nextInt(300));
+            if (random.nextBoolean()) {
+                set = set.with(Collections.singleton(item),
+                        Collections.emptySet());
+                expected.add(item);
+            } else {
+                set = set.with(Collections.emptySet(),
+                        Collections.singleton(item));
+                expected.remove(item);
+            }
+
+            // then
+            assertThat(set, is(expected));
+            assertThat(expected, is(set));
+        }
+    }
+
+    @Test
+    public void shouldSerializeItems() throws Exception {
+        // given
+        SelectionSet<Integer> set = SelectionSet.of(IntStream.range(0, 100)
+                .boxed().collect(Collectors.toSet()));
+
+        // when
+        Object deserialized = deserialize(serialize(set));
+
+        // then
+        assertThat(deserialized, is(set));
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    /**
+     * Item whose hash leaves most bits unused, so that items share trie
+     * nodes and some of them have equal hashes.
+     */
+    private static class CollidingItem implements Serializable {
+        private final int id;
+
+        private CollidingItem(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingItem && ((CollidingItem) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % 7 == 0 ? 42 : id << 27;
+        }
+    }
+}